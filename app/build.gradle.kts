@@ -154,6 +154,8 @@ configurations.configureEach {
 }
 
 dependencies {
+    implementation(project(":rule-engine"))
+
     compileOnly(libs.xposedApi)
     implementation(libs.dexkit)
     compileOnly(files("libs/api-100.aar"))
@@ -169,6 +171,8 @@ dependencies {
     implementation(libs.roomRuntime)
     ksp(libs.roomCompiler)
     implementation(libs.roomKtx)
+    implementation(libs.roomPaging)
+    implementation(libs.pagingRuntime)
     runtimeOnly(libs.lifecycleLiveDataKtx)
     implementation(libs.fragmentKtx)
 
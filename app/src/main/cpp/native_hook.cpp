@@ -10,6 +10,7 @@
 #include <unwind.h>
 #include <iomanip>
 #include <sstream>
+#include <atomic>
 #include "shadowhook.h"
 
 #if DEBUG
@@ -21,12 +22,15 @@
     #define LOGE(...)
 #endif
 
-#define MAX_BUFFER_SIZE (32 * 1024)
 #define MAX_STACK_DEPTH 12
+#define MAX_TRACKED_FD 65536
+#define MAX_TRACKED_SSL 4096
+#define SSL_PROBES 16
 
 static JavaVM *gJvm = nullptr;
 static jclass gNativeRequestHookClass = nullptr;
 static jmethodID gOnNativeDataMethod = nullptr;
+static jmethodID gOnNativeCloseMethod = nullptr;
 
 // --- Stub 定义 ---
 typedef ssize_t (*type_send)(int, const void *, size_t, int);
@@ -37,6 +41,8 @@ typedef ssize_t (*type_write)(int, const void *, size_t);
 typedef ssize_t (*type_read)(int, void *, size_t);
 typedef int (*type_SSL_write)(void *ssl, const void *buf, int num);
 typedef int (*type_SSL_read)(void *ssl, void *buf, int num);
+typedef int (*type_close)(int);
+typedef void (*type_SSL_free)(void *ssl);
 
 static type_send orig_send;
 static type_recv orig_recv;
@@ -44,8 +50,77 @@ static type_sendto orig_sendto;
 static type_recvfrom orig_recvfrom;
 static type_write orig_write;
 static type_read orig_read;
-static type_SSL_write orig_SSL_write;
-static type_SSL_read orig_SSL_read;
+static type_close orig_close;
+
+// 需要 Hook 的 SSL 库
+#define SSL_LIB_COUNT 4
+static const char *ssl_libs[SSL_LIB_COUNT] = {
+    "libssl.so", "libconscrypt_jni.so",
+    "libttboringssl.so", "libflutter.so"
+};
+
+// 每个库、每个符号各一份原函数指针，调用只能交还给被 Hook 的那个函数，
+// SSL 对象也只能交还给创建它的库释放
+#define SSL_SYM_PLAIN 0
+#define SSL_SYM_NATIVE_CRYPTO 1
+#define SSL_SYM_COUNT 2
+static type_SSL_write orig_SSL_write[SSL_LIB_COUNT][SSL_SYM_COUNT];
+static type_SSL_read orig_SSL_read[SSL_LIB_COUNT][SSL_SYM_COUNT];
+static type_SSL_free orig_SSL_free[SSL_LIB_COUNT];
+
+// 已回调过 Kotlin 的网络 fd，close 时只通知这些 fd，普通文件的 close 不受影响
+static std::atomic<uint64_t> seen_fds[MAX_TRACKED_FD / 64];
+
+void mark_fd(int fd) {
+    if (fd < 0 || fd >= MAX_TRACKED_FD) return;
+    seen_fds[fd >> 6].fetch_or(1ULL << (fd & 63), std::memory_order_relaxed);
+}
+
+// 清除标记并返回该 fd 之前是否被标记过
+bool take_fd(int fd) {
+    if (fd < 0 || fd >= MAX_TRACKED_FD) return false;
+    uint64_t bit = 1ULL << (fd & 63);
+    return (seen_fds[fd >> 6].fetch_and(~bit, std::memory_order_relaxed) & bit) != 0;
+}
+
+// 已回调过 Kotlin 的 SSL 指针，开放寻址的无锁集合；SSL_free 时只通知这些指针。
+// 槽位为 0 表示空，1 表示已删除；探测窗口满时记为未跟踪，此后 SSL_free 一律通知
+#define SSL_SLOT_EMPTY 0
+#define SSL_SLOT_DELETED 1
+static std::atomic<uintptr_t> seen_ssl[MAX_TRACKED_SSL];
+static std::atomic<bool> ssl_untracked(false);
+
+static size_t ssl_slot(uintptr_t ssl) {
+    return (size_t)(((uint64_t)ssl * 0x9E3779B97F4A7C15ULL) >> 52) & (MAX_TRACKED_SSL - 1);
+}
+
+void mark_ssl(uintptr_t ssl) {
+    size_t home = ssl_slot(ssl);
+    for (int i = 0; i < SSL_PROBES; i++) {
+        if (seen_ssl[(home + i) & (MAX_TRACKED_SSL - 1)].load(std::memory_order_relaxed) == ssl) return;
+    }
+    for (int i = 0; i < SSL_PROBES; i++) {
+        std::atomic<uintptr_t> &slot = seen_ssl[(home + i) & (MAX_TRACKED_SSL - 1)];
+        uintptr_t current = slot.load(std::memory_order_relaxed);
+        if ((current == SSL_SLOT_EMPTY || current == SSL_SLOT_DELETED) &&
+            slot.compare_exchange_strong(current, ssl, std::memory_order_relaxed)) {
+            return;
+        }
+    }
+    ssl_untracked.store(true, std::memory_order_relaxed);
+}
+
+// 清除标记并返回该指针是否需要通知
+bool take_ssl(uintptr_t ssl) {
+    size_t home = ssl_slot(ssl);
+    bool found = false;
+    for (int i = 0; i < SSL_PROBES; i++) {
+        std::atomic<uintptr_t> &slot = seen_ssl[(home + i) & (MAX_TRACKED_SSL - 1)];
+        uintptr_t current = ssl;
+        if (slot.compare_exchange_strong(current, SSL_SLOT_DELETED, std::memory_order_relaxed)) found = true;
+    }
+    return found || ssl_untracked.load(std::memory_order_relaxed);
+}
 
 // --- 堆栈回溯 ---
 
@@ -128,34 +203,45 @@ bool is_network_socket(int fd) {
     return (addr.ss_family == AF_INET || addr.ss_family == AF_INET6);
 }
 
+// 获取当前线程的 JNIEnv，必要时附加线程
+JNIEnv *attach_env(bool *needsDetach) {
+    JNIEnv *env;
+    *needsDetach = false;
+    int getEnvStat = gJvm->GetEnv((void **)&env, JNI_VERSION_1_6);
+    if (getEnvStat == JNI_EDETACHED) {
+        if (gJvm->AttachCurrentThread(&env, nullptr) != 0) return nullptr;
+        *needsDetach = true;
+    } else if (getEnvStat != JNI_OK) {
+        return nullptr;
+    }
+    return env;
+}
+
 // 回调核心
-bool callback_kotlin(int id, bool is_write, const void *buf, size_t len, bool is_ssl) {
+bool callback_kotlin(jlong id, bool is_write, const void *buf, size_t len, bool is_ssl) {
     if (gJvm == nullptr || gNativeRequestHookClass == nullptr || buf == nullptr) return false;
-    if (len <= 0 || len > 100 * 1024 * 1024) return false;
+    if (len <= 0) return false;
 
     if (!is_ssl) {
-        if (!is_socket(id)) return false;
-        if (!is_network_socket(id)) return false;
+        if (!is_socket((int)id)) return false;
+        if (!is_network_socket((int)id)) return false;
+        mark_fd((int)id);
+    } else {
+        mark_ssl((uintptr_t)id);
     }
 
-    JNIEnv *env;
-    bool needsDetach = false;
-    int getEnvStat = gJvm->GetEnv((void **)&env, JNI_VERSION_1_6);
-    if (getEnvStat == JNI_EDETACHED) {
-        if (gJvm->AttachCurrentThread(&env, nullptr) != 0) return false;
-        needsDetach = true;
-    } else if (getEnvStat != JNI_OK) {
-        return false;
-    }
+    bool needsDetach;
+    JNIEnv *env = attach_env(&needsDetach);
+    if (env == nullptr) return false;
 
     bool shouldBlock = false;
-    size_t copy_len = (len > MAX_BUFFER_SIZE) ? MAX_BUFFER_SIZE : len;
 
-    jbyteArray jData = env->NewByteArray(copy_len);
+    // 直接映射整个原缓冲区，仅在回调期间有效，Kotlin 侧不会保留引用；
+    // 不做截断，否则解析器的长度与分块计数会与实际数据错位
+    jobject jData = env->NewDirectByteBuffer(const_cast<void *>(buf), (jlong)len);
     if (jData != nullptr) {
-        env->SetByteArrayRegion(jData, 0, copy_len, (const jbyte *)buf);
         
-        std::string info = (!is_ssl && id > 0) ? get_socket_info(id) : "";
+        std::string info = (!is_ssl && id > 0) ? get_socket_info((int)id) : "";
         jstring jInfo = env->NewStringUTF(info.c_str());
         
         std::string stack = get_native_stack();
@@ -166,6 +252,10 @@ bool callback_kotlin(int id, bool is_write, const void *buf, size_t len, bool is
             gOnNativeDataMethod, 
             id, is_write, jData, jInfo, jStack, is_ssl
         );
+        if (env->ExceptionCheck()) {
+            env->ExceptionClear();
+            shouldBlock = false;
+        }
 
         env->DeleteLocalRef(jData);
         env->DeleteLocalRef(jInfo);
@@ -176,6 +266,21 @@ bool callback_kotlin(int id, bool is_write, const void *buf, size_t len, bool is
     return shouldBlock;
 }
 
+// 连接关闭通知，在句柄释放前调用，避免复用的 fd 或 SSL 指针继承旧的解析状态
+void notify_close(jlong id, bool is_ssl) {
+    if (gJvm == nullptr || gNativeRequestHookClass == nullptr || gOnNativeCloseMethod == nullptr) return;
+
+    bool needsDetach;
+    JNIEnv *env = attach_env(&needsDetach);
+    if (env == nullptr) return;
+
+    env->CallStaticVoidMethod(gNativeRequestHookClass, gOnNativeCloseMethod, id, is_ssl);
+    // 此时仍在 libc close() 或 SSL_free() 内部，异常不能留给调用方
+    if (env->ExceptionCheck()) env->ExceptionClear();
+
+    if (needsDetach) gJvm->DetachCurrentThread();
+}
+
 // --- Hooks ---
 
 ssize_t hook_send(int s, const void *buf, size_t len, int flags) {
@@ -211,21 +316,53 @@ ssize_t hook_read(int fd, void *buf, size_t count) {
     return ret;
 }
 
+template <int LIB, int SYM>
 int hook_SSL_write(void *ssl, const void *buf, int num) {
     if (buf != nullptr && num > 0) {
-        callback_kotlin((int)(long)ssl, true, buf, num, true);
+        callback_kotlin((jlong)(intptr_t)ssl, true, buf, num, true);
     }
-    return orig_SSL_write(ssl, buf, num);
+    return orig_SSL_write[LIB][SYM](ssl, buf, num);
 }
 
+template <int LIB, int SYM>
 int hook_SSL_read(void *ssl, void *buf, int num) {
-    int ret = orig_SSL_read(ssl, buf, num);
+    int ret = orig_SSL_read[LIB][SYM](ssl, buf, num);
     if (ret > 0 && buf != nullptr) {
-        callback_kotlin((int)(long)ssl, false, buf, ret, true);
+        callback_kotlin((jlong)(intptr_t)ssl, false, buf, ret, true);
     }
     return ret;
 }
 
+int hook_close(int fd) {
+    if (fd > 2 && take_fd(fd)) {
+        notify_close(fd, false);
+    }
+    return orig_close(fd);
+}
+
+template <int LIB>
+void hook_SSL_free(void *ssl) {
+    if (ssl != nullptr && take_ssl((uintptr_t)ssl)) {
+        notify_close((jlong)(intptr_t)ssl, true);
+    }
+    orig_SSL_free[LIB](ssl);
+}
+
+#define SSL_LIB_HOOKS(fn) { (void *)fn<0>, (void *)fn<1>, (void *)fn<2>, (void *)fn<3> }
+#define SSL_SYM_HOOKS(fn, LIB) { (void *)fn<LIB, SSL_SYM_PLAIN>, (void *)fn<LIB, SSL_SYM_NATIVE_CRYPTO> }
+
+static void *ssl_write_hooks[SSL_LIB_COUNT][SSL_SYM_COUNT] = {
+    SSL_SYM_HOOKS(hook_SSL_write, 0), SSL_SYM_HOOKS(hook_SSL_write, 1),
+    SSL_SYM_HOOKS(hook_SSL_write, 2), SSL_SYM_HOOKS(hook_SSL_write, 3)
+};
+
+static void *ssl_read_hooks[SSL_LIB_COUNT][SSL_SYM_COUNT] = {
+    SSL_SYM_HOOKS(hook_SSL_read, 0), SSL_SYM_HOOKS(hook_SSL_read, 1),
+    SSL_SYM_HOOKS(hook_SSL_read, 2), SSL_SYM_HOOKS(hook_SSL_read, 3)
+};
+
+static void *ssl_free_hooks[SSL_LIB_COUNT] = SSL_LIB_HOOKS(hook_SSL_free);
+
 // --- Init ---
 
 void hook_func(const char *lib_name, const char *sym_name, void *hook_func, void **orig_func) {
@@ -247,9 +384,12 @@ Java_com_close_hook_ads_hook_gc_network_NativeRequestHook_initNativeHook(JNIEnv
     if (!clazz) return;
     gNativeRequestHookClass = (jclass) env->NewGlobalRef(clazz);
     
-    gOnNativeDataMethod = env->GetStaticMethodID(clazz, "onNativeData", "(IZ[BLjava/lang/String;Ljava/lang/String;Z)Z");
+    gOnNativeDataMethod = env->GetStaticMethodID(clazz, "onNativeData", "(JZLjava/nio/ByteBuffer;Ljava/lang/String;Ljava/lang/String;Z)Z");
     if (!gOnNativeDataMethod) return;
 
+    gOnNativeCloseMethod = env->GetStaticMethodID(clazz, "onNativeClose", "(JZ)V");
+    if (!gOnNativeCloseMethod) return;
+
     shadowhook_init(SHADOWHOOK_MODE_UNIQUE, true);
 
     // Hook Libc
@@ -259,17 +399,14 @@ Java_com_close_hook_ads_hook_gc_network_NativeRequestHook_initNativeHook(JNIEnv
     hook_func("libc.so", "recvfrom", (void*)hook_recvfrom, (void**)&orig_recvfrom);
     hook_func("libc.so", "write", (void*)hook_write, (void**)&orig_write);
     hook_func("libc.so", "read", (void*)hook_read, (void**)&orig_read);
+    hook_func("libc.so", "close", (void*)hook_close, (void**)&orig_close);
 
     // Hook SSL
-    const char* ssl_libs[] = {
-        "libssl.so", "libconscrypt_jni.so",
-        "libttboringssl.so", "libflutter.so", nullptr
-    };
-
-    for (int i = 0; ssl_libs[i] != nullptr; i++) {
-        hook_func(ssl_libs[i], "SSL_write", (void*)hook_SSL_write, (void**)&orig_SSL_write);
-        hook_func(ssl_libs[i], "SSL_read", (void*)hook_SSL_read, (void**)&orig_SSL_read);
-        hook_func(ssl_libs[i], "NativeCrypto_SSL_write", (void*)hook_SSL_write, (void**)&orig_SSL_write);
-        hook_func(ssl_libs[i], "NativeCrypto_SSL_read", (void*)hook_SSL_read, (void**)&orig_SSL_read);
+    for (int i = 0; i < SSL_LIB_COUNT; i++) {
+        hook_func(ssl_libs[i], "SSL_write", ssl_write_hooks[i][SSL_SYM_PLAIN], (void**)&orig_SSL_write[i][SSL_SYM_PLAIN]);
+        hook_func(ssl_libs[i], "SSL_read", ssl_read_hooks[i][SSL_SYM_PLAIN], (void**)&orig_SSL_read[i][SSL_SYM_PLAIN]);
+        hook_func(ssl_libs[i], "NativeCrypto_SSL_write", ssl_write_hooks[i][SSL_SYM_NATIVE_CRYPTO], (void**)&orig_SSL_write[i][SSL_SYM_NATIVE_CRYPTO]);
+        hook_func(ssl_libs[i], "NativeCrypto_SSL_read", ssl_read_hooks[i][SSL_SYM_NATIVE_CRYPTO], (void**)&orig_SSL_read[i][SSL_SYM_NATIVE_CRYPTO]);
+        hook_func(ssl_libs[i], "SSL_free", ssl_free_hooks[i], (void**)&orig_SSL_free[i]);
     }
 }
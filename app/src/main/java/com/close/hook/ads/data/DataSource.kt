@@ -2,27 +2,69 @@ package com.close.hook.ads.data
 
 import android.content.Context
 import android.database.Cursor
+import android.net.Uri
+import androidx.paging.PagingSource
 import com.close.hook.ads.data.database.UrlDatabase
+import com.close.hook.ads.data.model.ImportResult
+import com.close.hook.ads.data.model.RuleHit
+import com.close.hook.ads.data.model.RuleSortOrder
+import com.close.hook.ads.data.model.Subscription
+import com.close.hook.ads.data.model.SyncResult
 import com.close.hook.ads.data.model.Url
+import com.close.hook.ads.rule.Rule
+import com.close.hook.ads.rule.RuleListParser
+import com.close.hook.ads.rule.RuleType
 import com.close.hook.ads.util.AppUtils
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.withContext
+import java.io.BufferedReader
+import java.io.FileNotFoundException
 
 class DataSource(context: Context) {
 
-    private val urlDao = UrlDatabase.getDatabase(context).urlDao
+    private val database = UrlDatabase.getDatabase(context)
+    private val urlDao = database.urlDao
+    private val ruleHitDao = database.ruleHitDao
+    private val subscriptionDao = database.subscriptionDao
+    private val contentResolver = context.contentResolver
+
+    /**
+     * Rules matching [searchText], loaded a page at a time. The text is matched as a
+     * word-prefix phrase against the full-text index on url (`goo` finds
+     * `ads.google.com`, `ads goo` finds it too), or as a substring of the type label.
+     */
+    fun searchUrls(searchText: String, sortOrder: RuleSortOrder = RuleSortOrder.NEWEST): PagingSource<Int, Url> {
+        val text = searchText.trim()
+        val match = ftsQuery(text)
+        val types = typesMatching(text)
+        return when {
+            sortOrder != RuleSortOrder.NEWEST -> urlDao.pagedSorted(text.isEmpty(), match, types, sortOrder.ordinal)
+            text.isEmpty() -> urlDao.pagedList()
+            else -> urlDao.pagedSearch(match, types)
+        }
+    }
 
-    fun searchUrls(searchText: String): Flow<List<Url>> =
-        if (searchText.isBlank()) urlDao.loadAllList() else urlDao.searchUrls(searchText)
+    // Types are stored as integers, so a search for "dom" is resolved against the labels here.
+    private fun typesMatching(searchText: String): List<RuleType> =
+        if (searchText.isEmpty()) emptyList() else RuleType.entries.filter { it.label.contains(searchText, ignoreCase = true) }
 
-    suspend fun addUrl(url: Url) {
-        if (!urlDao.isExist(url.type, url.url)) {
-            urlDao.insert(url)
-        }
+    // The FTS4 simple tokenizer splits on ASCII punctuation, so the query is split the
+    // same way and the last word is matched as a prefix. Empty matches nothing.
+    private fun ftsQuery(searchText: String): String {
+        val words = FTS_SEPARATORS.split(searchText).filter { it.isNotEmpty() }
+        return if (words.isEmpty()) "" else words.joinToString(" ", prefix = "\"", postfix = "*\"")
     }
 
+    fun ruleHits(): Flow<List<RuleHit>> = ruleHitDao.loadAll()
+
+    /** False when the rule already exists. */
+    suspend fun addUrl(url: Url): Boolean =
+        withContext(Dispatchers.IO) { urlDao.insert(url) != -1L }
+
     suspend fun removeList(list: List<Url>) {
         if (list.isNotEmpty()) {
             urlDao.deleteList(list)
@@ -37,23 +79,17 @@ class DataSource(context: Context) {
         urlDao.deleteAll()
     }
 
-    suspend fun addListUrl(list: List<Url>) {
-        if (list.isNotEmpty()) {
-            urlDao.insertAll(list)
-        }
-    }
+    suspend fun addListUrl(list: List<Url>): ImportResult =
+        if (list.isEmpty()) ImportResult() else withContext(Dispatchers.IO) { urlDao.insertCounted(list) }
 
-    suspend fun updateUrl(url: Url) {
-        urlDao.update(url)
-    }
+    /** False when the edit would duplicate another rule; the stored rule is left as it was. */
+    suspend fun updateUrl(url: Url): Boolean =
+        withContext(Dispatchers.IO) { urlDao.update(url) > 0 }
 
-    suspend fun removeUrlString(type: String, url: String) {
+    suspend fun removeUrlString(type: RuleType, url: String) {
         urlDao.deleteUrlString(type, url)
     }
 
-    suspend fun isExist(type: String, url: String): Boolean =
-        withContext(Dispatchers.IO) { urlDao.isExist(type, url) }
-
     suspend fun insertAll(urls: List<Url>): List<Long> =
         withContext(Dispatchers.IO) { urlDao.insertAll(urls) }
 
@@ -64,7 +100,108 @@ class DataSource(context: Context) {
         return urlDao.findAllList()
     }
 
+    /**
+     * Streams [reader] into the database in transactions of [IMPORT_BATCH_SIZE] rows.
+     * Duplicates, whether already stored or repeated in the file, are dropped by the
+     * (type, url) unique index and counted as skipped. [onProgress] runs after each
+     * committed batch with the running totals.
+     */
+    suspend fun importRules(reader: BufferedReader, onProgress: (ImportResult) -> Unit = {}): ImportResult =
+        withContext(Dispatchers.IO) {
+            var result = ImportResult()
+            val batch = ArrayList<Url>(IMPORT_BATCH_SIZE)
+
+            fun flush() {
+                if (batch.isEmpty()) return
+                val counts = urlDao.insertCounted(batch)
+                result = ImportResult(result.inserted + counts.inserted, result.skipped + counts.skipped)
+                batch.clear()
+                onProgress(result)
+            }
+
+            reader.lineSequence().forEach { line ->
+                RuleListParser.parse(line).forEach { rule ->
+                    batch.add(Url(rule.type, rule.value, scope = rule.scope, allow = rule.allow))
+                    if (batch.size >= IMPORT_BATCH_SIZE) {
+                        ensureActive()
+                        flush()
+                    }
+                }
+            }
+            flush()
+            result
+        }
+
+    fun subscriptions(): Flow<List<Subscription>> = subscriptionDao.loadAll()
+
+    suspend fun addSubscription(name: String, uri: String): Subscription =
+        withContext(Dispatchers.IO) {
+            val subscription = Subscription(name = name, uri = uri)
+            subscription.copy(id = subscriptionDao.insert(subscription))
+        }
+
+    suspend fun removeSubscription(subscription: Subscription) =
+        withContext(Dispatchers.IO) {
+            database.runInTransaction {
+                urlDao.deleteBySource(subscription.id)
+                subscriptionDao.deleteById(subscription.id)
+            }
+        }
+
+    /**
+     * Re-reads [subscription] from its URI and applies only the difference to the
+     * rules it owns: rules gone from the list are deleted, new ones inserted, and
+     * unchanged rows are left alone. The diff is committed in one transaction, so
+     * the rule files are republished once under one new version, and an unchanged
+     * list publishes nothing. A new rule that a hand-added rule or another
+     * subscription already covers is skipped and stays owned by that source.
+     */
+    suspend fun refreshSubscription(subscription: Subscription): SyncResult =
+        withContext(Dispatchers.IO) {
+            val wanted = LinkedHashSet<Rule>()
+            val input = contentResolver.openInputStream(Uri.parse(subscription.uri))
+                ?: throw FileNotFoundException(subscription.uri)
+            input.bufferedReader().useLines { lines ->
+                lines.forEachIndexed { i, line ->
+                    if (i % IMPORT_BATCH_SIZE == 0) ensureActive()
+                    wanted.addAll(RuleListParser.parse(line))
+                }
+            }
+
+            val owned = urlDao.findBySource(subscription.id)
+            val present = owned.mapTo(HashSet(owned.size * 2)) { it.toRule().copy(id = 0) }
+            val deleteIds = owned.filter { it.toRule().copy(id = 0) !in wanted }.map { it.id }
+            val inserts = wanted.filter { it !in present }.map {
+                Url(it.type, it.value, scope = it.scope, allow = it.allow, sourceId = subscription.id)
+            }
+
+            ensureActive()
+            val result = if (deleteIds.isEmpty() && inserts.isEmpty()) SyncResult() else urlDao.applyDiff(deleteIds, inserts)
+            // Wanted rules another source already covers stay with it, so the count comes from the diff.
+            val ruleCount = owned.size - result.deleted + result.inserted
+            subscriptionDao.update(subscription.copy(ruleCount = ruleCount, lastUpdated = System.currentTimeMillis()))
+            result
+        }
+
+    suspend fun refreshSubscriptions(): Map<Subscription, Result<SyncResult>> =
+        withContext(Dispatchers.IO) {
+            // A failed subscription does not stop the others, but cancelling the whole
+            // refresh does.
+            subscriptionDao.findAllList().associateWith { subscription ->
+                try {
+                    Result.success(refreshSubscription(subscription))
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    Result.failure(e)
+                }
+            }
+        }
+
     companion object {
+        private const val IMPORT_BATCH_SIZE = 2000
+        private val FTS_SEPARATORS = Regex("[\\x00-\\x2F\\x3A-\\x40\\x5B-\\x60\\x7B-\\x7F]+")
+
         @Volatile
         private var INSTANCE: DataSource? = null
 
@@ -0,0 +1,34 @@
+package com.close.hook.ads.data.dao
+
+import androidx.room.Dao
+import androidx.room.Query
+import androidx.room.Transaction
+import com.close.hook.ads.data.model.RuleHit
+import kotlinx.coroutines.flow.Flow
+
+@Dao
+interface RuleHitDao {
+
+    @Query("SELECT * FROM rule_hits")
+    fun loadAll(): Flow<List<RuleHit>>
+
+    @Query("UPDATE rule_hits SET hit_count = hit_count + :count, last_hit = MAX(last_hit, :lastHit) WHERE rule_id = :ruleId")
+    fun addHits(ruleId: Long, count: Long, lastHit: Long): Int
+
+    // Hits for rules deleted since the batch was counted are dropped here; hits for
+    // rules deleted later go with them through the foreign key.
+    @Query("INSERT OR IGNORE INTO rule_hits (rule_id, hit_count, last_hit) SELECT id, :count, :lastHit FROM url_info WHERE id = :ruleId")
+    fun insertHits(ruleId: Long, count: Long, lastHit: Long): Long
+
+    @Query("DELETE FROM rule_hits")
+    fun deleteAll(): Int
+
+    @Transaction
+    fun recordHits(ruleIds: LongArray, counts: LongArray, lastHits: LongArray) {
+        for (i in ruleIds.indices) {
+            if (addHits(ruleIds[i], counts[i], lastHits[i]) == 0) {
+                insertHits(ruleIds[i], counts[i], lastHits[i])
+            }
+        }
+    }
+}
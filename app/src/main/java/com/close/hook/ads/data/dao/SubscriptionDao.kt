@@ -0,0 +1,27 @@
+package com.close.hook.ads.data.dao
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.Query
+import androidx.room.Update
+import com.close.hook.ads.data.model.Subscription
+import kotlinx.coroutines.flow.Flow
+
+@Dao
+interface SubscriptionDao {
+
+    @Query("SELECT * FROM subscriptions ORDER BY name")
+    fun loadAll(): Flow<List<Subscription>>
+
+    @Query("SELECT * FROM subscriptions")
+    fun findAllList(): List<Subscription>
+
+    @Insert
+    fun insert(subscription: Subscription): Long
+
+    @Update
+    fun update(subscription: Subscription): Int
+
+    @Query("DELETE FROM subscriptions WHERE id = :id")
+    fun deleteById(id: Long): Int
+}
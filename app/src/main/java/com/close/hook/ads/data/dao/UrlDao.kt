@@ -1,61 +1,127 @@
 package com.close.hook.ads.data.dao
 
+import androidx.paging.PagingSource
 import androidx.room.Dao
 import androidx.room.Delete
 import androidx.room.Insert
+import androidx.room.OnConflictStrategy
 import androidx.room.Query
+import androidx.room.Transaction
 import androidx.room.Update
+import com.close.hook.ads.data.model.ImportResult
+import com.close.hook.ads.data.model.SyncResult
 import com.close.hook.ads.data.model.Url
-import kotlinx.coroutines.flow.Flow
+import com.close.hook.ads.rule.RuleType
+import com.close.hook.ads.rule.UrlPrefixMatcher
 
 @Dao
 interface UrlDao {
 
-    @Insert
-    fun insert(url: Url): Long
+    // -1 when the (scope, type, url) unique index already holds the rule.
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    fun insertRow(url: Url): Long
+
+    // Rules are written through these, which store them as [Url.normalized].
+    fun insert(url: Url): Long = insertRow(url.normalized())
 
     @Query("SELECT * FROM url_info")
     fun findAllList(): List<Url>
 
-    @Query("DELETE FROM url_info WHERE id = :id")
-    fun deleteById(id: Long): Int
-
-    @Update
-    fun update(url: Url): Int
+    @Query("SELECT * FROM url_info WHERE id = :id")
+    fun findById(id: Long): Url?
 
-    @Insert
-    fun insertAll(urls: List<Url>): List<Long>
+    @Query("SELECT * FROM url_info WHERE scope IN ('', :scope)")
+    fun findListForScope(scope: String): List<Url>
 
-    @Query("SELECT * FROM url_info ORDER BY id DESC")
-    fun loadAllList(): Flow<List<Url>>
-
-    @Query("SELECT * FROM url_info WHERE url LIKE '%' || :searchText || '%' OR type LIKE '%' || :searchText || '%' ORDER BY id DESC")
-    fun searchUrls(searchText: String): Flow<List<Url>>
+    @Query("DELETE FROM url_info WHERE id = :id")
+    fun deleteById(id: Long): Int
 
-    @Query("SELECT * FROM url_info WHERE type = 'URL' AND :fullUrl LIKE url || '%' LIMIT 1")
-    fun findUrlMatch(fullUrl: String): Url?
+    // 0 when the edited rule would duplicate another one.
+    @Update(onConflict = OnConflictStrategy.IGNORE)
+    fun updateRow(url: Url): Int
 
-    @Query("SELECT * FROM url_info WHERE type = 'Domain' AND url = :host LIMIT 1")
-    fun findDomainMatch(host: String): Url?
+    fun update(url: Url): Int = updateRow(url.normalized())
 
-    @Query("SELECT * FROM url_info WHERE type = 'KeyWord' AND INSTR(:value, url) > 0 LIMIT 1")
-    fun findKeywordMatch(value: String): Url?
+    // Rows that already exist by (scope, type, url) come back as -1.
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    fun insertRows(urls: List<Url>): List<Long>
 
-    @Query("SELECT COUNT(*) > 0 FROM url_info WHERE type = 'URL' AND :fullUrl LIKE url || '%'")
-    fun existsUrlMatch(fullUrl: String): Boolean
+    fun insertAll(urls: List<Url>): List<Long> = insertRows(urls.map(Url::normalized))
 
-    @Query("SELECT COUNT(*) > 0 FROM url_info WHERE type = 'Domain' AND url = :host")
-    fun existsDomainMatch(host: String): Boolean
+    /**
+     * Inserts [urls] in one transaction and counts the rows the unique index
+     * rejected as skipped, so callers never read before writing.
+     */
+    @Transaction
+    fun insertCounted(urls: List<Url>): ImportResult {
+        val inserted = insertAll(urls).count { it != -1L }
+        return ImportResult(inserted, urls.size - inserted)
+    }
 
-    @Query("SELECT COUNT(*) > 0 FROM url_info WHERE type = 'KeyWord' AND INSTR(:value, url) > 0")
+    @Query("SELECT * FROM url_info ORDER BY id DESC")
+    fun pagedList(): PagingSource<Int, Url>
+
+    // [match] is an FTS4 query over url_info_fts; matching rows are fetched by rowid.
+    @Query(
+        "SELECT * FROM url_info WHERE id IN (" +
+            "SELECT docid FROM url_info_fts WHERE url_info_fts MATCH :match " +
+            "UNION ALL SELECT id FROM url_info WHERE type IN (:types)) " +
+            "ORDER BY id DESC"
+    )
+    fun pagedSearch(match: String, types: List<RuleType>): PagingSource<Int, Url>
+
+    @Query(
+        "SELECT url_info.* FROM url_info LEFT JOIN rule_hits ON rule_hits.rule_id = url_info.id " +
+            "WHERE :all OR url_info.id IN (" +
+            "SELECT docid FROM url_info_fts WHERE url_info_fts MATCH :match " +
+            "UNION ALL SELECT id FROM url_info WHERE type IN (:types)) " +
+            "ORDER BY CASE :sortOrder WHEN 1 THEN IFNULL(hit_count, 0) END DESC, " +
+            "CASE :sortOrder WHEN 2 THEN IFNULL(last_hit, 0) END DESC, url_info.id DESC"
+    )
+    fun pagedSorted(all: Boolean, match: String, types: List<RuleType>, sortOrder: Int): PagingSource<Int, Url>
+
+    // The greatest URL rule not after [prefix]; one seek on the (scope, type, url) index.
+    @Query("SELECT * FROM url_info WHERE scope = :scope AND type = 0 AND url <= :prefix ORDER BY url DESC LIMIT 1")
+    fun floorUrlRule(scope: String, prefix: String): Url?
+
+    /**
+     * A URL rule that is a prefix of [url], from the global rules or [scope],
+     * ignoring ASCII case as the stored rules are folded. Each probe either finds a prefix or shortens the probe to the part it shares
+     * with the rule found, so this takes a few index seeks rather than a scan.
+     */
+    @Transaction
+    fun findUrlMatch(url: String, scope: String = ""): Url? {
+        val fullUrl = UrlPrefixMatcher.foldCase(url)
+        for (ruleScope in setOf(scope, "")) {
+            var probe = fullUrl
+            while (probe.isNotEmpty()) {
+                val floor = floorUrlRule(ruleScope, probe) ?: break
+                if (fullUrl.startsWith(floor.url)) return floor
+                probe = probe.commonPrefixWith(floor.url)
+            }
+        }
+        return null
+    }
+
+    @Query("SELECT * FROM url_info WHERE type = 1 AND reversed_key IN (:keys) AND scope IN ('', :scope) LIMIT 1")
+    fun findDomainRule(keys: List<String>, scope: String): Url?
+
+    @Query("SELECT COUNT(*) > 0 FROM url_info WHERE type = 1 AND reversed_key IN (:keys) AND scope IN ('', :scope)")
+    fun existsDomainRule(keys: List<String>, scope: String): Boolean
+
+    // Index lookups on (type, reversed_key); `ads.*.example.com` style rules are only
+    // honored by the in-memory engine.
+    fun findDomainMatch(host: String, scope: String = ""): Url? =
+        Url.domainLookupKeys(host).takeIf { it.isNotEmpty() }?.let { findDomainRule(it, scope) }
+
+    fun existsUrlMatch(fullUrl: String): Boolean = findUrlMatch(fullUrl) != null
+
+    fun existsDomainMatch(host: String): Boolean =
+        Url.domainLookupKeys(host).let { it.isNotEmpty() && existsDomainRule(it, "") }
+
+    @Query("SELECT COUNT(*) > 0 FROM url_info WHERE type = 2 AND INSTR(:value, url) > 0")
     fun existsKeywordMatch(value: String): Boolean
 
-    @Query("SELECT COUNT(*) > 0 FROM url_info WHERE url = :url")
-    fun isExist(url: String): Boolean
-
-    @Query("SELECT COUNT(*) > 0 FROM url_info WHERE type = :type AND url = :url")
-    fun isExist(type: String, url: String): Boolean
-
     @Delete
     fun deleteList(list: List<Url>): Int
 
@@ -63,8 +129,34 @@ interface UrlDao {
     fun deleteUrl(url: Url): Int
 
     @Query("DELETE FROM url_info WHERE type = :type AND url = :url")
-    fun deleteUrlString(type: String, url: String): Int
+    fun deleteRuleValue(type: RuleType, url: String): Int
+
+    fun deleteUrlString(type: RuleType, url: String): Int =
+        deleteRuleValue(type, if (type == RuleType.URL) UrlPrefixMatcher.foldCase(url) else url)
 
     @Query("DELETE FROM url_info")
     fun deleteAll(): Int
+
+    @Query("SELECT * FROM url_info WHERE source_id = :sourceId")
+    fun findBySource(sourceId: Long): List<Url>
+
+    @Query("DELETE FROM url_info WHERE id IN (:ids)")
+    fun deleteByIds(ids: List<Long>): Int
+
+    @Query("DELETE FROM url_info WHERE source_id = :sourceId")
+    fun deleteBySource(sourceId: Long): Int
+
+    /**
+     * Applies a subscription diff in one transaction, so observers see a single
+     * change. Deletes go first, which lets a rule whose flags changed be re-added.
+     * Returns the rows actually inserted and deleted.
+     */
+    @Transaction
+    fun applyDiff(deleteIds: List<Long>, inserts: List<Url>): SyncResult {
+        val deleted = deleteIds.chunked(MAX_BIND_ARGS).sumOf { deleteByIds(it) }
+        return SyncResult(insertCounted(inserts).inserted, deleted)
+    }
 }
+
+// SQLite's default SQLITE_MAX_VARIABLE_NUMBER before 3.32.
+private const val MAX_BIND_ARGS = 999
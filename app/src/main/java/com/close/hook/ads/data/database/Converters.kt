@@ -0,0 +1,13 @@
+package com.close.hook.ads.data.database
+
+import androidx.room.TypeConverter
+import com.close.hook.ads.rule.RuleType
+
+class Converters {
+
+    @TypeConverter
+    fun fromRuleType(type: RuleType): Int = type.ordinal
+
+    @TypeConverter
+    fun toRuleType(ordinal: Int): RuleType = RuleType.entries[ordinal]
+}
@@ -1,17 +1,30 @@
 package com.close.hook.ads.data.database
 
 import android.content.Context
+import android.database.sqlite.SQLiteDatabase
+import androidx.core.content.contentValuesOf
 import androidx.room.Database
 import androidx.room.Room
 import androidx.room.RoomDatabase
+import androidx.room.TypeConverters
 import androidx.room.migration.Migration
 import androidx.sqlite.db.SupportSQLiteDatabase
+import com.close.hook.ads.data.dao.RuleHitDao
+import com.close.hook.ads.data.dao.SubscriptionDao
 import com.close.hook.ads.data.dao.UrlDao
+import com.close.hook.ads.data.model.RuleHit
+import com.close.hook.ads.data.model.Subscription
 import com.close.hook.ads.data.model.Url
+import com.close.hook.ads.data.model.UrlFts
+import com.close.hook.ads.rule.RuleType
+import com.close.hook.ads.rule.UrlPrefixMatcher
 
-@Database(entities = [Url::class], version = 4, exportSchema = false)
+@Database(entities = [Url::class, UrlFts::class, RuleHit::class, Subscription::class], version = 13, exportSchema = false)
+@TypeConverters(Converters::class)
 abstract class UrlDatabase : RoomDatabase() {
     abstract val urlDao: UrlDao
+    abstract val ruleHitDao: RuleHitDao
+    abstract val subscriptionDao: SubscriptionDao
 
     companion object {
         @Volatile
@@ -39,6 +52,127 @@ abstract class UrlDatabase : RoomDatabase() {
             }
         }
 
+        private val MIGRATION_4_5: Migration = object : Migration(4, 5) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("DELETE FROM url_info WHERE id NOT IN (SELECT MIN(id) FROM url_info GROUP BY type, url)")
+                db.execSQL("DROP INDEX IF EXISTS index_url_info_type")
+                db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS index_url_info_type_url ON url_info(type, url)")
+            }
+        }
+
+        private val MIGRATION_5_6: Migration = object : Migration(5, 6) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("ALTER TABLE url_info ADD COLUMN scope TEXT NOT NULL DEFAULT ''")
+                db.execSQL("DROP INDEX IF EXISTS index_url_info_type_url")
+                db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS index_url_info_scope_type_url ON url_info(scope, type, url)")
+            }
+        }
+
+        private val MIGRATION_6_7: Migration = object : Migration(6, 7) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("CREATE TABLE IF NOT EXISTS rule_hits (rule_id INTEGER NOT NULL, hit_count INTEGER NOT NULL DEFAULT 0, last_hit INTEGER NOT NULL DEFAULT 0, PRIMARY KEY(rule_id))")
+            }
+        }
+
+        // Rebuilds url_info with the type as a RuleType ordinal and a reversed_key for
+        // Domain rules. Rows whose type never parsed as a rule are dropped, and rows
+        // that only differed by type case collapse into one.
+        private val MIGRATION_7_8: Migration = object : Migration(7, 8) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("CREATE TABLE url_info_new (type INTEGER NOT NULL, url TEXT NOT NULL, id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, scope TEXT NOT NULL DEFAULT '', reversed_key TEXT NOT NULL DEFAULT '')")
+                db.execSQL("CREATE UNIQUE INDEX index_url_info_new_scope_type_url ON url_info_new(scope, type, url)")
+                db.execSQL(
+                    "INSERT OR IGNORE INTO url_info_new (id, type, url, scope) " +
+                        "SELECT id, CASE LOWER(type) WHEN 'url' THEN 0 WHEN 'domain' THEN 1 WHEN 'keyword' THEN 2 ELSE 3 END, url, scope " +
+                        "FROM url_info WHERE LOWER(type) IN ('url', 'domain', 'keyword', 'regex') ORDER BY id"
+                )
+                db.execSQL("DROP TABLE url_info")
+                db.execSQL("ALTER TABLE url_info_new RENAME TO url_info")
+                db.execSQL("DROP INDEX index_url_info_new_scope_type_url")
+                db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS index_url_info_scope_type_url ON url_info(scope, type, url)")
+
+                db.query("SELECT id, url FROM url_info WHERE type = ${RuleType.DOMAIN.ordinal}").use { cursor ->
+                    while (cursor.moveToNext()) {
+                        db.execSQL(
+                            "UPDATE url_info SET reversed_key = ? WHERE id = ?",
+                            arrayOf(Url.reversedKeyOf(RuleType.DOMAIN, cursor.getString(1)), cursor.getLong(0))
+                        )
+                    }
+                }
+                db.execSQL("CREATE INDEX IF NOT EXISTS index_url_info_type_reversed_key_scope ON url_info(type, reversed_key, scope)")
+                db.execSQL("DELETE FROM rule_hits WHERE rule_id NOT IN (SELECT id FROM url_info)")
+            }
+        }
+
+        private val MIGRATION_8_9: Migration = object : Migration(8, 9) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `url_info_fts` USING FTS4(`url` TEXT NOT NULL, content=`url_info`)")
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_url_info_fts_BEFORE_UPDATE BEFORE UPDATE ON `url_info` BEGIN DELETE FROM `url_info_fts` WHERE `docid`=OLD.`rowid`; END")
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_url_info_fts_BEFORE_DELETE BEFORE DELETE ON `url_info` BEGIN DELETE FROM `url_info_fts` WHERE `docid`=OLD.`rowid`; END")
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_url_info_fts_AFTER_UPDATE AFTER UPDATE ON `url_info` BEGIN INSERT INTO `url_info_fts`(`docid`, `url`) VALUES (NEW.`rowid`, NEW.`url`); END")
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_url_info_fts_AFTER_INSERT AFTER INSERT ON `url_info` BEGIN INSERT INTO `url_info_fts`(`docid`, `url`) VALUES (NEW.`rowid`, NEW.`url`); END")
+                db.execSQL("INSERT INTO `url_info_fts`(`url_info_fts`) VALUES ('rebuild')")
+            }
+        }
+
+        private val MIGRATION_9_10: Migration = object : Migration(9, 10) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("ALTER TABLE `url_info` ADD COLUMN `allow` INTEGER NOT NULL DEFAULT 0")
+            }
+        }
+
+        private val MIGRATION_10_11: Migration = object : Migration(10, 11) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("ALTER TABLE `url_info` ADD COLUMN `source_id` INTEGER NOT NULL DEFAULT 0")
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_url_info_source_id` ON `url_info` (`source_id`)")
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `subscriptions` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                        "`name` TEXT NOT NULL, `uri` TEXT NOT NULL, `rule_count` INTEGER NOT NULL DEFAULT 0, " +
+                        "`last_updated` INTEGER NOT NULL DEFAULT 0)"
+                )
+            }
+        }
+
+        // URL rules match ignoring ASCII case and are stored folded, so the unique index
+        // seeks them in that form. A rule that folds onto one already stored goes.
+        private val MIGRATION_11_12: Migration = object : Migration(11, 12) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                val folded = ArrayList<Pair<Long, String>>()
+                db.query("SELECT id, url FROM url_info WHERE type = ${RuleType.URL.ordinal}").use { cursor ->
+                    while (cursor.moveToNext()) {
+                        val url = cursor.getString(1)
+                        val key = UrlPrefixMatcher.foldCase(url)
+                        if (key != url) folded.add(cursor.getLong(0) to key)
+                    }
+                }
+                folded.forEach { (id, url) ->
+                    val args = arrayOf<Any?>(id)
+                    if (db.update("url_info", SQLiteDatabase.CONFLICT_IGNORE, contentValuesOf("url" to url), "id = ?", args) == 0) {
+                        db.delete("url_info", "id = ?", args)
+                        db.delete("rule_hits", "rule_id = ?", args)
+                    }
+                }
+            }
+        }
+
+        // rule_hits gets a foreign key to url_info, so deleting rules deletes their hits
+        // instead of every hit flush sweeping for orphans.
+        private val MIGRATION_12_13: Migration = object : Migration(12, 13) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE rule_hits_new (rule_id INTEGER NOT NULL, hit_count INTEGER NOT NULL DEFAULT 0, " +
+                        "last_hit INTEGER NOT NULL DEFAULT 0, PRIMARY KEY(rule_id), " +
+                        "FOREIGN KEY(rule_id) REFERENCES url_info(id) ON UPDATE NO ACTION ON DELETE CASCADE)"
+                )
+                db.execSQL(
+                    "INSERT INTO rule_hits_new (rule_id, hit_count, last_hit) " +
+                        "SELECT rule_id, hit_count, last_hit FROM rule_hits WHERE rule_id IN (SELECT id FROM url_info)"
+                )
+                db.execSQL("DROP TABLE rule_hits")
+                db.execSQL("ALTER TABLE rule_hits_new RENAME TO rule_hits")
+            }
+        }
+
         fun getDatabase(context: Context): UrlDatabase =
             instance ?: synchronized(this) {
                 instance ?: Room.databaseBuilder(
@@ -46,7 +180,7 @@ abstract class UrlDatabase : RoomDatabase() {
                     UrlDatabase::class.java,
                     "url_database"
                 )
-                .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4)
+                .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7, MIGRATION_7_8, MIGRATION_8_9, MIGRATION_9_10, MIGRATION_10_11, MIGRATION_11_12, MIGRATION_12_13)
                 .build().also {
                     instance = it
                 }
@@ -0,0 +1,6 @@
+package com.close.hook.ads.data.model
+
+data class ImportResult(
+    val inserted: Int = 0,
+    val skipped: Int = 0
+)
@@ -0,0 +1,26 @@
+package com.close.hook.ads.data.model
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.ForeignKey
+import androidx.room.PrimaryKey
+
+// Kept out of url_info so recording hits never invalidates the compiled rule files.
+// Deleting a rule deletes its hits.
+@Entity(
+    tableName = "rule_hits",
+    foreignKeys = [
+        ForeignKey(entity = Url::class, parentColumns = ["id"], childColumns = ["rule_id"], onDelete = ForeignKey.CASCADE)
+    ]
+)
+data class RuleHit(
+    @PrimaryKey
+    @ColumnInfo(name = "rule_id")
+    val ruleId: Long,
+
+    @ColumnInfo(name = "hit_count", defaultValue = "0")
+    val hitCount: Long = 0L,
+
+    @ColumnInfo(name = "last_hit", defaultValue = "0")
+    val lastHit: Long = 0L
+)
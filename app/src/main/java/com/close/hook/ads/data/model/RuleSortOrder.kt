@@ -0,0 +1,8 @@
+package com.close.hook.ads.data.model
+
+// Ordinals are passed to UrlDao.searchUrls, keep them in sync with its ORDER BY.
+enum class RuleSortOrder {
+    NEWEST,
+    HITS,
+    LAST_HIT
+}
@@ -0,0 +1,24 @@
+package com.close.hook.ads.data.model
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+// A named rule list read from [uri]; its rules are the url_info rows with source_id = id.
+@Entity(tableName = "subscriptions")
+data class Subscription(
+    @PrimaryKey(autoGenerate = true)
+    val id: Long = 0L,
+
+    @ColumnInfo(name = "name")
+    val name: String,
+
+    @ColumnInfo(name = "uri")
+    val uri: String,
+
+    @ColumnInfo(name = "rule_count", defaultValue = "0")
+    val ruleCount: Int = 0,
+
+    @ColumnInfo(name = "last_updated", defaultValue = "0")
+    val lastUpdated: Long = 0L
+)
@@ -0,0 +1,6 @@
+package com.close.hook.ads.data.model
+
+data class SyncResult(
+    val inserted: Int = 0,
+    val deleted: Int = 0
+)
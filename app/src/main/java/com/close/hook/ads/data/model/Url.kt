@@ -5,28 +5,95 @@ import androidx.room.ColumnInfo
 import androidx.room.Entity
 import androidx.room.Index
 import androidx.room.PrimaryKey
+import com.close.hook.ads.rule.Rule
+import com.close.hook.ads.rule.RuleType
+import com.close.hook.ads.rule.UrlPrefixMatcher
 import kotlinx.parcelize.Parcelize
 
 @Parcelize
 @Entity(
     tableName = "url_info",
     indices = [
-        Index(value = ["url"]),
-        Index(value = ["type"])
+        Index(value = ["scope", "type", "url"], unique = true),
+        Index(value = ["type", "reversed_key", "scope"]),
+        Index(value = ["source_id"])
     ]
 )
 data class Url(
-    @ColumnInfo(name = "type") // domain, url, keyword
-    var type: String,
+    // Stored as the RuleType ordinal.
+    @ColumnInfo(name = "type")
+    val type: RuleType,
 
     @ColumnInfo(name = "url")
-    var url: String,
+    val url: String,
 
     @PrimaryKey(autoGenerate = true)
-    var id: Long = 0L
+    val id: Long = 0L,
+
+    // Package name the rule is limited to; empty applies it to every app.
+    @ColumnInfo(name = "scope", defaultValue = "")
+    val scope: String = "",
+
+    // Exception rule: a request it matches passes even if block rules match it too.
+    @ColumnInfo(name = "allow", defaultValue = "0")
+    val allow: Boolean = false,
+
+    // Subscription the rule was imported from; 0 for rules added by hand.
+    @ColumnInfo(name = "source_id", defaultValue = "0")
+    val sourceId: Long = 0L,
+
+    @ColumnInfo(name = "reversed_key", defaultValue = "")
+    val reversedKey: String = reversedKeyOf(type, url)
 ) : Parcelable {
+
+    fun toRule(): Rule = Rule(id, type, url, scope, allow)
+
+    // The same row with new contents; id and sourceId carry over.
+    fun edited(type: RuleType, url: String, scope: String, allow: Boolean): Url =
+        copy(type = type, url = url, scope = scope, allow = allow, reversedKey = reversedKeyOf(type, url))
+
+    // The row as stored: URL rules match ignoring ASCII case and are stored folded, so
+    // the unique index sees case variants as one rule and prefix lookups can seek on
+    // it, and the Domain lookup key always follows the value it was derived from.
+    fun normalized(): Url {
+        val value = if (type == RuleType.URL) UrlPrefixMatcher.foldCase(url) else url
+        val key = reversedKeyOf(type, value)
+        return if (value == url && key == reversedKey) this else copy(url = value, reversedKey = key)
+    }
+
     companion object {
+        const val URL_ID = "id"
         const val URL_TYPE = "type"
         const val URL_ADDRESS = "url"
+        const val URL_SCOPE = "scope"
+        const val URL_ALLOW = "allow"
+
+        /**
+         * Lookup key for Domain rules: the host reversed, so that a suffix match on the
+         * host becomes an exact match on one of a few keys. Rules covering subdomains
+         * (`*.example.com`, `.example.com`) get a trailing dot. Other rule types have
+         * no key.
+         */
+        fun reversedKeyOf(type: RuleType, value: String): String {
+            if (type != RuleType.DOMAIN) return ""
+            val host = value.trim().lowercase().removeSuffix(".")
+            return when {
+                host.startsWith("*.") -> host.substring(2).reversed() + "."
+                host.startsWith(".") -> host.substring(1).reversed() + "."
+                else -> host.reversed()
+            }
+        }
+
+        // Every key a Domain rule matching [host] can have: the exact host, plus the
+        // subdomain-covering form of the host and of each of its parent domains.
+        fun domainLookupKeys(host: String): List<String> {
+            val reversed = host.trim().lowercase().removeSuffix(".").reversed()
+            if (reversed.isEmpty()) return emptyList()
+            val keys = arrayListOf(reversed, "$reversed.")
+            reversed.forEachIndexed { i, c ->
+                if (c == '.') keys.add(reversed.substring(0, i + 1))
+            }
+            return keys
+        }
     }
 }
@@ -0,0 +1,13 @@
+package com.close.hook.ads.data.model
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.Fts4
+
+// Full-text index over url_info.url, kept in sync by Room's content triggers; docid is url_info.id.
+@Fts4(contentEntity = Url::class)
+@Entity(tableName = "url_info_fts")
+data class UrlFts(
+    @ColumnInfo(name = "url")
+    val url: String
+)
@@ -0,0 +1,170 @@
+package com.close.hook.ads.data.repository
+
+import android.content.Context
+import android.util.Log
+import androidx.room.InvalidationTracker
+import com.close.hook.ads.data.database.UrlDatabase
+import com.close.hook.ads.data.model.Url
+import com.close.hook.ads.manager.ConnectionState
+import com.close.hook.ads.manager.ServiceManager
+import com.close.hook.ads.preference.HookPrefs
+import com.close.hook.ads.provider.UrlContentProvider
+import com.close.hook.ads.rule.KeywordMatcher
+import com.close.hook.ads.rule.Rule
+import com.close.hook.ads.rule.RuleFile
+import com.close.hook.ads.rule.RuleSnapshot
+import com.close.hook.ads.rule.RuleType
+import com.close.hook.ads.rule.ScopedRuleSet
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import java.util.concurrent.atomic.AtomicBoolean
+
+class RuleRepository(context: Context, database: UrlDatabase) {
+
+    private val appContext = context.applicationContext
+
+    private val urlDao = database.urlDao
+
+    private val dirty = AtomicBoolean(true)
+    @Volatile
+    private var compiled: Compiled? = null
+    private var lastVersion = 0L
+
+    private val keywordBuilder = KeywordMatcher.Builder()
+    private var keywordRules: Map<Long, Rule> = emptyMap()
+
+    private val publishScope = CoroutineScope(Dispatchers.IO.limitedParallelism(1) + SupervisorJob())
+    private var publishJob: Job? = null
+    private var writtenVersion = -1L
+    private var notifiedVersion = -1L
+
+    init {
+        database.invalidationTracker.addObserver(object : InvalidationTracker.Observer(UrlContentProvider.URL_TABLE_NAME) {
+            override fun onInvalidated(tables: Set<String>) {
+                dirty.set(true)
+                schedulePublish()
+            }
+        })
+        publishScope.launch {
+            ServiceManager.connectionState.collect { state ->
+                if (state is ConnectionState.Connected) publish()
+            }
+        }
+    }
+
+    /**
+     * Publishes a write made through the provider. Hooked processes only act on the
+     * versioned change [publish] sends, so the provider goes through here rather than
+     * notifying the item URI itself.
+     */
+    fun onRulesWritten() {
+        dirty.set(true)
+        schedulePublish()
+    }
+
+    // Global rules plus one small snapshot per package that has scoped rules, all
+    // compiled from the same table state and published under the same version.
+    private class Compiled(val global: RuleSnapshot, val scoped: Map<String, RuleSnapshot>)
+
+    fun snapshot(): RuleSnapshot = compiled().global
+
+    fun rules(scope: String?): ScopedRuleSet {
+        val current = compiled()
+        return if (scope.isNullOrEmpty()) ScopedRuleSet(current.global)
+        else ScopedRuleSet(current.global, scope, current.scoped[scope])
+    }
+
+    private fun compiled(): Compiled {
+        if (!dirty.get()) compiled?.let { return it }
+        synchronized(this) {
+            val current = compiled
+            if (!dirty.getAndSet(false) && current != null) return current
+            return rebuild().also { compiled = it }
+        }
+    }
+
+    private fun rebuild(): Compiled {
+        val (rules, scopedRules) = urlDao.findAllList().map(Url::toRule).partition { it.scope.isEmpty() }
+        val keywords = rules.filter { it.type == RuleType.KEYWORD }.associateBy(Rule::id)
+
+        keywordRules.forEach { (id, rule) ->
+            if (keywords[id] != rule) keywordBuilder.remove(rule)
+        }
+        keywords.forEach { (id, rule) ->
+            if (keywordRules[id] != rule) keywordBuilder.add(rule)
+        }
+        keywordRules = keywords
+
+        lastVersion = maxOf(System.currentTimeMillis(), lastVersion + 1)
+        val version = lastVersion
+        return Compiled(
+            RuleSnapshot.build(rules, keywordBuilder, version),
+            scopedRules.groupBy(Rule::scope).mapValues { (_, list) -> RuleSnapshot.build(list, version = version) }
+        )
+    }
+
+    @Synchronized
+    private fun schedulePublish() {
+        publishJob?.cancel()
+        publishJob = publishScope.launch {
+            delay(PUBLISH_DELAY_MS)
+            publish()
+        }
+    }
+
+    private fun publish() {
+        val current = compiled()
+        val version = current.global.version
+        if (ServiceManager.isModuleActivated && version != writtenVersion && writeRuleFiles(current)) {
+            writtenVersion = version
+        }
+        if (version != notifiedVersion) {
+            notifiedVersion = version
+            notifyRulesChanged(version)
+        }
+    }
+
+    private fun writeRuleFiles(current: Compiled): Boolean {
+        val version = current.global.version
+        // The global file goes last: a process that sees it can rely on its scoped
+        // file of the same version being complete, or on there being none.
+        val files = LinkedHashMap<String, RuleSnapshot>()
+        current.scoped.forEach { (scope, snapshot) ->
+            if (PACKAGE_NAME.matches(scope)) files[RuleFile.fileName(version, scope)] = snapshot
+        }
+        files[RuleFile.fileName(version)] = current.global
+        files.forEach { (fileName, snapshot) ->
+            if (!HookPrefs.writeBytesToFile(fileName, RuleFile.write(snapshot))) {
+                Log.e(TAG, "Failed to publish rule file $fileName")
+                return false
+            }
+        }
+        HookPrefs.listRemoteFiles()
+            .filter { it !in files && RuleFile.versionOf(it) != null }
+            .forEach { HookPrefs.deleteRemoteFile(it) }
+        return true
+    }
+
+    // Hooked processes observe this URI; the version tells them whether the newest
+    // rule file is current or whether they have to fall back to a provider query.
+    private fun notifyRulesChanged(version: Long) {
+        val uri = UrlContentProvider.CONTENT_URI.buildUpon()
+            .appendQueryParameter(UrlContentProvider.PARAM_VERSION, version.toString())
+            .build()
+        try {
+            appContext.contentResolver.notifyChange(uri, null)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to notify rule change", e)
+        }
+    }
+
+    companion object {
+        private const val TAG = "RuleRepository"
+        private const val PUBLISH_DELAY_MS = 500L
+        private val PACKAGE_NAME = Regex("[A-Za-z0-9_.]+")
+    }
+}
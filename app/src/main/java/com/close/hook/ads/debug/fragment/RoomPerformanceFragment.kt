@@ -21,6 +21,7 @@ import com.close.hook.ads.data.model.Url
 import com.close.hook.ads.databinding.FragmentRoomPerformanceBinding
 import com.close.hook.ads.databinding.ItemLegendBinding
 import com.close.hook.ads.debug.datasource.TestDataSource
+import com.close.hook.ads.rule.RuleType
 import com.close.hook.ads.util.resolveColorAttr
 import com.github.mikephil.charting.components.MarkerView
 import com.github.mikephil.charting.components.XAxis
@@ -176,11 +177,11 @@ class RoomPerformanceFragment : Fragment() {
             val urlList = List(TEST_DATA_SIZE) { i ->
                 val uniqueId = index * TEST_DATA_SIZE + i
                 if (i % 3 == 0) {
-                    Url(type = "URL", url = "https://example.com/path/$uniqueId")
+                    Url(type = RuleType.URL, url = "https://example.com/path/$uniqueId")
                 } else if (i % 3 == 1) {
-                    Url(type = "Domain", url = "domain-$uniqueId.com")
+                    Url(type = RuleType.DOMAIN, url = "domain-$uniqueId.com")
                 } else {
-                    Url(type = "KeyWord", url = "keyword-$uniqueId")
+                    Url(type = RuleType.KEYWORD, url = "keyword-$uniqueId")
                 }
             }
 
@@ -194,12 +195,12 @@ class RoomPerformanceFragment : Fragment() {
             totalTimes[ChartMetric.QUERY_ALL] = totalTimes[ChartMetric.QUERY_ALL]!! + queryAllTime
             delay(400)
 
-            val existsUrlToFind = urlList.firstOrNull { it.type == "URL" }?.url ?: "https://nonexistent.com/path/0"
+            val existsUrlToFind = urlList.firstOrNull { it.type == RuleType.URL }?.url ?: "https://nonexistent.com/path/0"
             val existsUrlMatchTime = measurePerformance { testDataSource.existsUrlMatch(existsUrlToFind) }
             postLog("🟢 精准URL前缀查找 (找到): ${existsUrlMatchTime}ms")
             totalTimes[ChartMetric.EXISTS_URL_MATCH] = totalTimes[ChartMetric.EXISTS_URL_MATCH]!! + existsUrlMatchTime
 
-            val existsKeywordToFind = urlList.firstOrNull { it.type == "KeyWord" }?.url ?: "nonexistent-keyword"
+            val existsKeywordToFind = urlList.firstOrNull { it.type == RuleType.KEYWORD }?.url ?: "nonexistent-keyword"
             val queryLikeTime = measurePerformance { testDataSource.existsKeywordMatch("text containing $existsKeywordToFind") }
             postLog("🟡 任意包含 (关键词查找 - 找到): ${queryLikeTime}ms")
             totalTimes[ChartMetric.EXISTS_KEYWORD_MATCH] = totalTimes[ChartMetric.EXISTS_KEYWORD_MATCH]!! + queryLikeTime
@@ -209,7 +210,7 @@ class RoomPerformanceFragment : Fragment() {
             postLog("🔷 URL前缀查找 (未找到): ${notFoundUrlPrefixTime}ms")
             totalTimes[ChartMetric.NOT_FOUND_URL_PREFIX] = totalTimes[ChartMetric.NOT_FOUND_URL_PREFIX]!! + notFoundUrlPrefixTime
 
-            val existsDomainToFind = urlList.firstOrNull { it.type == "Domain" }?.url ?: "nonexistent-domain.com"
+            val existsDomainToFind = urlList.firstOrNull { it.type == RuleType.DOMAIN }?.url ?: "nonexistent-domain.com"
             val existsDomainTime = measurePerformance { testDataSource.existsDomainMatch("http://$existsDomainToFind/some/path") }
             postLog("🔶 Domain包含查找 (找到): ${existsDomainTime}ms")
             totalTimes[ChartMetric.EXISTS_DOMAIN] = totalTimes[ChartMetric.EXISTS_DOMAIN]!! + existsDomainTime
@@ -0,0 +1,62 @@
+package com.close.hook.ads.hook.gc.network
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Fixed-size heap segments shared by every connection parser in the process.
+ * Released segments are kept for reuse up to [MAX_IDLE_SEGMENTS], so steady
+ * traffic parses without allocating. Retained body bytes across all connections
+ * are held to [BODY_BUDGET]; a parser that cannot reserve another segment stops
+ * retaining and only counts what follows.
+ */
+internal object BufferPool {
+
+    const val SEGMENT_SIZE = 16 * 1024
+
+    private const val MAX_IDLE_SEGMENTS = 32
+    private const val BODY_BUDGET = 32L * 1024 * 1024
+
+    private val idle = ConcurrentLinkedQueue<ByteArray>()
+    private val idleCount = AtomicInteger()
+    private val reservedBodyBytes = AtomicLong()
+    private val segmentBytesInUse = AtomicLong()
+
+    /** Body bytes currently held by all parsers. */
+    val retainedBodyBytes: Long get() = reservedBodyBytes.get()
+
+    /** Bytes of segments handed out and not yet released, heads and bodies alike. */
+    val bytesInUse: Long get() = segmentBytesInUse.get()
+
+    fun acquire(): ByteArray {
+        segmentBytesInUse.addAndGet(SEGMENT_SIZE.toLong())
+        val segment = idle.poll() ?: return ByteArray(SEGMENT_SIZE)
+        idleCount.decrementAndGet()
+        return segment
+    }
+
+    /** Returns [segment] for reuse; arrays of any other size are left to the GC. */
+    fun release(segment: ByteArray) {
+        if (segment.size != SEGMENT_SIZE) return
+        segmentBytesInUse.addAndGet(-SEGMENT_SIZE.toLong())
+        if (idleCount.incrementAndGet() <= MAX_IDLE_SEGMENTS) {
+            idle.offer(segment)
+        } else {
+            idleCount.decrementAndGet()
+        }
+    }
+
+    /** Reserves room for one more body segment, or returns false if the budget is spent. */
+    fun reserveBodySegment(): Boolean {
+        while (true) {
+            val current = reservedBodyBytes.get()
+            if (current + SEGMENT_SIZE > BODY_BUDGET) return false
+            if (reservedBodyBytes.compareAndSet(current, current + SEGMENT_SIZE)) return true
+        }
+    }
+
+    fun releaseBodySegments(count: Int) {
+        reservedBodyBytes.addAndGet(-count.toLong() * SEGMENT_SIZE)
+    }
+}
@@ -0,0 +1,65 @@
+package com.close.hook.ads.hook.gc.network
+
+import java.nio.ByteBuffer
+
+/**
+ * Byte searches over array ranges and [ByteBuffer]s for the connection parsers.
+ * Nothing here allocates: candidates are found by scanning for the first byte,
+ * memchr style, and the rest of a pattern is compared in place. The patterns the
+ * parsers look for are at most four bytes long, where a skip table would not pay
+ * for itself. Indexes are absolute; buffer positions are left untouched.
+ */
+internal object ByteSearch {
+
+    fun indexOf(data: ByteArray, target: Byte, from: Int, to: Int): Int {
+        for (i in from until to) {
+            if (data[i] == target) return i
+        }
+        return -1
+    }
+
+    fun indexOf(data: ByteArray, pattern: ByteArray, from: Int, to: Int): Int {
+        val last = to - pattern.size
+        var i = from
+        while (i <= last) {
+            i = indexOf(data, pattern[0], i, last + 1)
+            if (i < 0) return -1
+            var k = 1
+            while (k < pattern.size && data[i + k] == pattern[k]) k++
+            if (k == pattern.size) return i
+            i++
+        }
+        return -1
+    }
+
+    fun indexOf(buffer: ByteBuffer, target: Byte, from: Int, to: Int): Int {
+        if (buffer.hasArray()) {
+            val base = buffer.arrayOffset()
+            val i = indexOf(buffer.array(), target, base + from, base + to)
+            return if (i < 0) -1 else i - base
+        }
+        for (i in from until to) {
+            if (buffer.get(i) == target) return i
+        }
+        return -1
+    }
+
+    fun indexOf(buffer: ByteBuffer, pattern: ByteArray, from: Int, to: Int): Int {
+        if (buffer.hasArray()) {
+            val base = buffer.arrayOffset()
+            val i = indexOf(buffer.array(), pattern, base + from, base + to)
+            return if (i < 0) -1 else i - base
+        }
+        val last = to - pattern.size
+        var i = from
+        while (i <= last) {
+            i = indexOf(buffer, pattern[0], i, last + 1)
+            if (i < 0) return -1
+            var k = 1
+            while (k < pattern.size && buffer.get(i + k) == pattern[k]) k++
+            if (k == pattern.size) return i
+            i++
+        }
+        return -1
+    }
+}
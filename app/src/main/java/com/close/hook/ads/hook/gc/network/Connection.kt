@@ -0,0 +1,74 @@
+package com.close.hook.ads.hook.gc.network
+
+import com.close.hook.ads.data.model.BlockedRequest
+
+/**
+ * One hooked connection: a parser for each direction and the requests waiting for
+ * their responses. [id] is unique for the life of the process, unlike the sockets,
+ * SSL pointers and fds that [ConnectionRegistry] finds connections by, which get
+ * reused. Each parser is only touched while holding its own lock, so a close on
+ * one thread cannot hand storage back to the pool under a feed on another.
+ *
+ * HTTP/1.1 answers requests in the order they were sent, so requests written
+ * ahead of their responses, on a kept-alive or pipelining connection, queue up
+ * and each response takes the oldest. At most [MAX_IN_FLIGHT] are held; past
+ * that the oldest are taken to have been answered somewhere we cannot see.
+ */
+internal class Connection(val id: Long) {
+
+    val requests = ParsingState(Charsets.UTF_8, endsAtClose = false, retainsBody = { true })
+    val responses = ParsingState(Charsets.ISO_8859_1, endsAtClose = true,
+        retainsBody = RequestHook::collectsResponseBody, hasBody = ::responseHasBody)
+
+    private val inFlight = ArrayDeque<BlockedRequest>()
+
+    // System.nanoTime() of the last bytes seen in either direction.
+    @Volatile
+    var lastActive = System.nanoTime()
+        private set
+
+    // Set under both parser locks; a feed that loses the race with close drops its bytes.
+    @Volatile
+    var isClosed = false
+        private set
+
+    fun touch() {
+        lastActive = System.nanoTime()
+    }
+
+    fun enqueue(request: BlockedRequest) {
+        synchronized(inFlight) {
+            if (inFlight.size == MAX_IN_FLIGHT) inFlight.removeFirst()
+            inFlight.addLast(request)
+        }
+    }
+
+    /** The oldest request still waiting for its response, or null if none is. */
+    fun poll(): BlockedRequest? = synchronized(inFlight) { inFlight.removeFirstOrNull() }
+
+    fun peek(): BlockedRequest? = synchronized(inFlight) { inFlight.firstOrNull() }
+
+    // RFC 9112 §6.3: these end with their head, even if they carry a Content-Length.
+    private fun responseHasBody(head: String): Boolean {
+        val code = ParsingState.statusCode(head)
+        if (code in 100..199 || code == 204 || code == 304) return false
+        return !peek()?.method.equals("HEAD", ignoreCase = true)
+    }
+
+    // A response read until the close is complete now, and still gets its check.
+    fun close() {
+        synchronized(requests) {
+            synchronized(responses) {
+                isClosed = true
+                if (responses.finish()) RequestHook.dispatchResponse(this, null)
+                requests.reset()
+                responses.reset()
+            }
+        }
+        synchronized(inFlight) { inFlight.clear() }
+    }
+
+    companion object {
+        private const val MAX_IN_FLIGHT = 32
+    }
+}
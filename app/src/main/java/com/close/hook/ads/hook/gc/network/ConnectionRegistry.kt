@@ -0,0 +1,127 @@
+package com.close.hook.ads.hook.gc.network
+
+import de.robv.android.xposed.XposedBridge
+import java.lang.ref.WeakReference
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Live [Connection]s, found by the object a Java hook sees (a socket or an SSL
+ * engine) or by the handle a native hook sees (an SSL pointer or an fd). Close
+ * hooks end a connection explicitly. Objects are held weakly and matched by
+ * identity, so a collected socket or engine is noticed even when its close was
+ * missed. Native handles are reused by the system as soon as they are closed and
+ * are only valid until their close hook fires. Anything idle for [IDLE_TIMEOUT_MS]
+ * is evicted on the next sweep.
+ */
+internal object ConnectionRegistry {
+
+    private const val LOG_PREFIX = "[ConnectionRegistry] "
+    private const val IDLE_TIMEOUT_MS = 5 * 60_000L
+    private const val SWEEP_INTERVAL_SECONDS = 60L
+
+    private class ObjectEntry(owner: Any, val connection: Connection) {
+        val owner = WeakReference(owner)
+    }
+
+    private val nextId = AtomicLong()
+    // Keyed by identity hash; a bucket lists every live owner sharing that hash.
+    private val byObject = HashMap<Int, ArrayList<ObjectEntry>>()
+    private val byHandle = HashMap<Long, Connection>()
+    private val started = AtomicBoolean(false)
+
+    private val sweeper = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "AdClose-Connections").apply { isDaemon = true }
+    }
+
+    /** Connections currently tracked. */
+    val liveConnections: Int
+        get() = synchronized(this) { byObject.values.sumOf { it.size } + byHandle.size }
+
+    /** Pooled bytes held by connection parsers. */
+    val retainedBytes: Long get() = BufferPool.bytesInUse
+
+    fun start() {
+        if (!started.compareAndSet(false, true)) return
+        sweeper.scheduleWithFixedDelay(::sweep, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS)
+    }
+
+    fun of(owner: Any): Connection {
+        val connection = synchronized(this) {
+            val bucket = byObject.getOrPut(System.identityHashCode(owner)) { ArrayList(1) }
+            bucket.firstOrNull { it.owner.get() === owner }?.connection
+                ?: Connection(nextId.incrementAndGet()).also { bucket.add(ObjectEntry(owner, it)) }
+        }
+        connection.touch()
+        return connection
+    }
+
+    fun of(handle: Long): Connection {
+        val connection = synchronized(this) {
+            byHandle.getOrPut(handle) { Connection(nextId.incrementAndGet()) }
+        }
+        connection.touch()
+        return connection
+    }
+
+    fun close(owner: Any) {
+        val connection = synchronized(this) {
+            val hash = System.identityHashCode(owner)
+            val bucket = byObject[hash] ?: return
+            val index = bucket.indexOfFirst { it.owner.get() === owner }
+            if (index < 0) return
+            val entry = bucket.removeAt(index)
+            if (bucket.isEmpty()) byObject.remove(hash)
+            entry.connection
+        }
+        connection.close()
+    }
+
+    fun close(handle: Long) {
+        synchronized(this) { byHandle.remove(handle) }?.close()
+    }
+
+    /** Drops [connection] wherever it is registered, once its bytes can no longer be followed. */
+    fun discard(connection: Connection) {
+        synchronized(this) {
+            val buckets = byObject.values.iterator()
+            while (buckets.hasNext()) {
+                val bucket = buckets.next()
+                bucket.removeAll { it.connection === connection }
+                if (bucket.isEmpty()) buckets.remove()
+            }
+            byHandle.values.removeAll { it === connection }
+        }
+        connection.close()
+    }
+
+    private fun sweep() {
+        val deadline = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS)
+        val evicted = ArrayList<Connection>()
+        synchronized(this) {
+            val buckets = byObject.values.iterator()
+            while (buckets.hasNext()) {
+                val bucket = buckets.next()
+                bucket.removeAll { entry ->
+                    (entry.owner.get() == null || entry.connection.lastActive - deadline < 0).also {
+                        if (it) evicted.add(entry.connection)
+                    }
+                }
+                if (bucket.isEmpty()) buckets.remove()
+            }
+            val handles = byHandle.values.iterator()
+            while (handles.hasNext()) {
+                val connection = handles.next()
+                if (connection.lastActive - deadline < 0) {
+                    evicted.add(connection)
+                    handles.remove()
+                }
+            }
+        }
+        if (evicted.isEmpty()) return
+        evicted.forEach(Connection::close)
+        XposedBridge.log("$LOG_PREFIX Evicted ${evicted.size} connections; live $liveConnections, retained $retainedBytes bytes")
+    }
+}
@@ -3,7 +3,7 @@ package com.close.hook.ads.hook.gc.network
 import com.close.hook.ads.data.model.BlockedRequest
 import com.close.hook.ads.hook.util.HookUtil
 import de.robv.android.xposed.XposedBridge
-import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
 import java.nio.charset.Charset
 
 object NativeRequestHook {
@@ -35,28 +35,24 @@ object NativeRequestHook {
 
     @JvmStatic
     fun onNativeData(
-        id: Int,
+        id: Long,
         isWrite: Boolean,
-        data: ByteArray?,
+        data: ByteBuffer?,
         address: String?,
         stack: String?,
         isSSL: Boolean
     ): Boolean {
-        if (data == null || data.isEmpty()) return false
+        // A direct view of the native buffer, valid only for this call.
+        if (data == null || !data.hasRemaining()) return false
 
-        val key = if (isSSL) id else -id
-        
+        val connection = ConnectionRegistry.of(handleOf(id, isSSL))
         var shouldBlock = false
 
         if (isWrite) {
-            val buffer = RequestHook.requestBuffers.getOrPut(key) { ByteArrayOutputStream() }
             try {
-                buffer.write(data)
-                RequestHook.processRequestBuffer(key, isSSL)
-                
-                val requestInfo = RequestHook.pendingRequests[key]
-                if (requestInfo != null) {
-                    
+                // Each request completed by this write is enriched and checked before it
+                // is queued; a blocked one never gets a response to wait for.
+                shouldBlock = RequestHook.processRequestData(connection, data, isSSL) { requestInfo ->
                     val javaStack = HookUtil.getFormattedStackTrace()
                     
                     val isFromJavaNetworking = stack?.let { nativeStack ->
@@ -74,22 +70,15 @@ object NativeRequestHook {
                         fullAddress = address ?: requestInfo.fullAddress,
                         stack = finalStack
                     )
-                    
-                    RequestHook.pendingRequests[key] = enrichedInfo
 
-                    shouldBlock = RequestHook.checkShouldBlockRequest(enrichedInfo)
-                    if (shouldBlock) {
-                        RequestHook.pendingRequests.remove(key)
-                    }
+                    if (RequestHook.checkShouldBlockRequest(enrichedInfo)) null else enrichedInfo
                 }
             } catch (e: Exception) {
                 XposedBridge.log("$LOG_PREFIX Error processing request buffer: ${e.message}")
             }
         } else {
-            val buffer = RequestHook.responseBuffers.getOrPut(key) { ByteArrayOutputStream() }
             try {
-                buffer.write(data)
-                if (RequestHook.processResponseBuffer(key, null)) {
+                if (RequestHook.processResponseData(connection, data, null)) {
                     shouldBlock = true
                 }
             } catch (e: Exception) {
@@ -99,4 +88,14 @@ object NativeRequestHook {
         
         return shouldBlock
     }
+
+    // Called before an fd or SSL object is released, so a later connection that gets
+    // the same handle starts with fresh parsers.
+    @JvmStatic
+    fun onNativeClose(id: Long, isSSL: Boolean) {
+        ConnectionRegistry.close(handleOf(id, isSSL))
+    }
+
+    // SSL pointers and fds share the registry's handle space; fds are stored negated.
+    private fun handleOf(id: Long, isSSL: Boolean): Long = if (isSSL) id else -id
 }
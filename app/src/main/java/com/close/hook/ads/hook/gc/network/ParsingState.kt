@@ -0,0 +1,331 @@
+package com.close.hook.ads.hook.gc.network
+
+import java.nio.ByteBuffer
+import java.nio.charset.Charset
+
+/**
+ * Incremental HTTP/1.1 framing for one direction of one connection. The hooks feed
+ * bytes as they see them through [advance], which only looks at the new bytes: the
+ * search for the end of the head resumes where the last one stopped, and the body
+ * is consumed by length or chunk by chunk without rescanning what came before.
+ * Bytes left over after one message start the next, so keep-alive connections run
+ * through any number of messages.
+ *
+ * A message whose head [hasBody] rejects ends with its head, whatever its framing
+ * headers say; responses to HEAD and 1xx, 204 and 304 responses are like that.
+ * Otherwise the body is chunked when the last Transfer-Encoding is `chunked`, and
+ * runs for Content-Length bytes when that is given. With neither, a response
+ * ([endsAtClose]) runs until the connection closes and is completed by [finish];
+ * a request has no body.
+ *
+ * Storage comes from [BufferPool] and goes back on [reset], so an idle state holds
+ * nothing. Bodies are kept only when [retainsBody] says so when the head arrives,
+ * and only up to [MAX_BODY_SIZE] and the pool's budget; past that the body is just
+ * counted through to its end. A head over [MAX_HEAD_SIZE], or framing that cannot
+ * be followed, is taken as a stream this parser has lost, and the rest of it is
+ * ignored; [isDiscarding] tells the owner to drop the connection.
+ */
+internal class ParsingState(
+    private val headCharset: Charset,
+    private val endsAtClose: Boolean,
+    private val retainsBody: () -> Boolean,
+    private val hasBody: (head: String) -> Boolean = { true }
+) {
+
+    private enum class Phase { HEAD, BODY, UNTIL_CLOSE, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER, COMPLETE, DISCARD }
+
+    private var phase = Phase.HEAD
+
+    private var head: ByteArray? = null
+    private var headSize = 0
+    // Where the search for the blank line ending the head resumes.
+    private var scanFrom = 0
+
+    private val segments = ArrayList<ByteArray>()
+    private var retaining = false
+    private var retained = 0L
+    private var bodyLength = 0L
+    // Body or chunk bytes still to come.
+    private var remaining = 0L
+    private var chunkSize = 0L
+    private var chunkSizeDigits = true
+    private var trailerLineLength = 0
+
+    /** True once a whole message has been read; take it with [headString] and [body], then [reset]. */
+    val isComplete: Boolean get() = phase == Phase.COMPLETE
+
+    /** Nothing buffered, so the state can be dropped without losing a partial message. */
+    val isIdle: Boolean get() = phase == Phase.HEAD && headSize == 0
+
+    /** The stream could not be followed; nothing more will be parsed from it. */
+    val isDiscarding: Boolean get() = phase == Phase.DISCARD
+
+    /**
+     * Consumes bytes from [input] until a message completes or the input runs out,
+     * advancing its position past what was consumed. Nothing is kept that refers to
+     * [input], so it may wrap memory that is only valid during the call.
+     */
+    fun advance(input: ByteBuffer) {
+        while (input.hasRemaining() && phase != Phase.COMPLETE) {
+            when (phase) {
+                Phase.HEAD -> consumeHead(input)
+                Phase.BODY, Phase.CHUNK_DATA -> consumeBody(input)
+                Phase.UNTIL_CLOSE -> retain(input, input.remaining())
+                Phase.CHUNK_SIZE -> consumeChunkSize(input)
+                Phase.CHUNK_END -> consumeLineEnd(input)
+                Phase.TRAILER -> consumeTrailer(input)
+                Phase.COMPLETE -> Unit
+                Phase.DISCARD -> input.position(input.limit())
+            }
+        }
+    }
+
+    /**
+     * The connection has closed: a message delimited by the close is complete now.
+     * Returns whether there was one.
+     */
+    fun finish(): Boolean {
+        if (phase != Phase.UNTIL_CLOSE) return false
+        phase = Phase.COMPLETE
+        return true
+    }
+
+    // The head without its terminating blank line.
+    fun headString(): String = String(head!!, 0, headSize - HEADER_END.size, headCharset)
+
+    /** The whole body, or null if it was empty or not kept in full. */
+    fun body(): ByteArray? {
+        if (!retaining || bodyLength == 0L) return null
+        val body = ByteArray(retained.toInt())
+        segments.forEachIndexed { i, segment ->
+            val offset = i * BufferPool.SEGMENT_SIZE
+            System.arraycopy(segment, 0, body, offset, minOf(BufferPool.SEGMENT_SIZE, body.size - offset))
+        }
+        return body
+    }
+
+    /** Returns all storage to the pool and readies the state for the next message. */
+    fun reset() {
+        if (phase == Phase.DISCARD) return
+        phase = Phase.HEAD
+        head?.let(BufferPool::release)
+        head = null
+        headSize = 0
+        scanFrom = 0
+        releaseBody()
+        retaining = false
+        bodyLength = 0L
+        remaining = 0L
+    }
+
+    private fun consumeHead(input: ByteBuffer) {
+        val start = input.position()
+        if (headSize > 0) {
+            // A blank line split across writes ends within the first few new bytes.
+            if (!appendHead(input, minOf(HEADER_END.size - 1, input.remaining()))) return
+            val found = ByteSearch.indexOf(head!!, HEADER_END, scanFrom, headSize)
+            if (found >= 0) {
+                val headEnd = found + HEADER_END.size
+                input.position(input.position() - (headSize - headEnd))
+                headSize = headEnd
+                startBody()
+                return
+            }
+            headSize -= input.position() - start
+            input.position(start)
+        }
+        // Only the head is copied; body bytes after it are consumed from [input].
+        val found = ByteSearch.indexOf(input, HEADER_END, start, input.limit())
+        if (found < 0) {
+            if (appendHead(input, input.remaining())) {
+                scanFrom = maxOf(0, headSize - HEADER_END.size + 1)
+            }
+        } else if (appendHead(input, found + HEADER_END.size - start)) {
+            startBody()
+        }
+    }
+
+    private fun appendHead(input: ByteBuffer, length: Int): Boolean {
+        if (headSize + length > MAX_HEAD_SIZE) {
+            discard()
+            input.position(input.limit())
+            return false
+        }
+        var head = head ?: BufferPool.acquire().also { head = it }
+        if (headSize + length > head.size) {
+            val grown = head.copyOf(maxOf(head.size * 2, headSize + length))
+            BufferPool.release(head)
+            head = grown
+            this.head = grown
+        }
+        input.get(head, headSize, length)
+        headSize += length
+        return true
+    }
+
+    private fun startBody() {
+        val headers = String(head!!, 0, headSize, Charsets.ISO_8859_1)
+        if (!hasBody(headers)) {
+            phase = Phase.COMPLETE
+            return
+        }
+        retaining = retainsBody()
+        val transferEncoding = headerValue(headers, "Transfer-Encoding")
+        val contentLength = headerValue(headers, "Content-Length")
+        when {
+            // RFC 9112 §6.3: Transfer-Encoding overrides Content-Length.
+            transferEncoding != null -> when {
+                transferEncoding.substringAfterLast(',').trim().equals("chunked", ignoreCase = true) -> startChunk()
+                endsAtClose -> phase = Phase.UNTIL_CLOSE
+                else -> discard()
+            }
+            contentLength != null -> {
+                val length = contentLength.toLongOrNull()
+                when {
+                    length == null || length < 0 -> discard()
+                    length > 0 -> {
+                        remaining = length
+                        phase = Phase.BODY
+                    }
+                    else -> phase = Phase.COMPLETE
+                }
+            }
+            endsAtClose -> phase = Phase.UNTIL_CLOSE
+            else -> phase = Phase.COMPLETE
+        }
+    }
+
+    private fun discard() {
+        reset()
+        phase = Phase.DISCARD
+    }
+
+    private fun consumeBody(input: ByteBuffer) {
+        val length = minOf(remaining, input.remaining().toLong()).toInt()
+        retain(input, length)
+        remaining -= length
+        if (remaining == 0L) {
+            phase = if (phase == Phase.BODY) Phase.COMPLETE else Phase.CHUNK_END
+        }
+    }
+
+    // Copies body bytes into pooled segments while retaining, and skips the rest.
+    private fun retain(input: ByteBuffer, length: Int) {
+        bodyLength += length
+        var left = length
+        while (retaining && left > 0) {
+            val room = segments.size.toLong() * BufferPool.SEGMENT_SIZE - retained
+            if (room == 0L) {
+                if (retained + BufferPool.SEGMENT_SIZE > MAX_BODY_SIZE || !BufferPool.reserveBodySegment()) {
+                    retaining = false
+                    releaseBody()
+                } else {
+                    segments.add(BufferPool.acquire())
+                }
+                continue
+            }
+            val n = minOf(left.toLong(), room).toInt()
+            input.get(segments.last(), (retained % BufferPool.SEGMENT_SIZE).toInt(), n)
+            retained += n
+            left -= n
+        }
+        input.position(input.position() + left)
+    }
+
+    private fun releaseBody() {
+        if (segments.isEmpty()) return
+        BufferPool.releaseBodySegments(segments.size)
+        segments.forEach(BufferPool::release)
+        segments.clear()
+        retained = 0L
+    }
+
+    private fun startChunk() {
+        chunkSize = 0L
+        chunkSizeDigits = true
+        phase = Phase.CHUNK_SIZE
+    }
+
+    // The size line may arrive split across writes, so its hex digits are accumulated
+    // as they come; anything after them (extensions, CR) is skipped.
+    private fun consumeChunkSize(input: ByteBuffer) {
+        val lineFeed = ByteSearch.indexOf(input, LF, input.position(), input.limit())
+        val lineEnd = if (lineFeed < 0) input.limit() else lineFeed
+        var i = input.position()
+        while (chunkSizeDigits && i < lineEnd) {
+            val digit = Character.digit(input.get(i).toInt(), 16)
+            if (digit < 0) {
+                chunkSizeDigits = false
+            } else {
+                chunkSize = chunkSize * 16 + digit
+            }
+            i++
+        }
+        if (lineFeed < 0) {
+            input.position(input.limit())
+            return
+        }
+
+        if (chunkSize == 0L) {
+            trailerLineLength = 0
+            phase = Phase.TRAILER
+        } else {
+            remaining = chunkSize
+            phase = Phase.CHUNK_DATA
+        }
+        input.position(lineFeed + 1)
+    }
+
+    private fun consumeLineEnd(input: ByteBuffer) {
+        val lineFeed = ByteSearch.indexOf(input, LF, input.position(), input.limit())
+        if (lineFeed < 0) {
+            input.position(input.limit())
+            return
+        }
+        startChunk()
+        input.position(lineFeed + 1)
+    }
+
+    // Trailer fields after the last chunk, up to the empty line that ends the message.
+    private fun consumeTrailer(input: ByteBuffer) {
+        val lineFeed = ByteSearch.indexOf(input, LF, input.position(), input.limit())
+        val lineEnd = if (lineFeed < 0) input.limit() else lineFeed
+        for (i in input.position() until lineEnd) {
+            if (input.get(i) != CR) trailerLineLength++
+        }
+        if (lineFeed < 0) {
+            input.position(input.limit())
+            return
+        }
+
+        if (trailerLineLength == 0) {
+            phase = Phase.COMPLETE
+        } else {
+            trailerLineLength = 0
+        }
+        input.position(lineFeed + 1)
+    }
+
+    companion object {
+        const val MAX_HEAD_SIZE = 64 * 1024
+        const val MAX_BODY_SIZE = 2L * 1024 * 1024
+        private const val CR = '\r'.code.toByte()
+        private const val LF = '\n'.code.toByte()
+        private val HEADER_END = "\r\n\r\n".toByteArray()
+
+        /** The status code of a response head, or -1 if it has none. */
+        fun statusCode(head: String): Int =
+            head.substringAfter(' ', "").substringBefore(' ').substringBefore('\r').toIntOrNull() ?: -1
+
+        // The value of the first field named [name], with surrounding whitespace removed.
+        private fun headerValue(headers: String, name: String): String? {
+            for (line in headers.lineSequence().drop(1)) {
+                val colon = line.indexOf(':')
+                if (colon > 0 && line.substring(0, colon).trim().equals(name, ignoreCase = true)) {
+                    return line.substring(colon + 1).trim()
+                }
+            }
+            return null
+        }
+    }
+}
@@ -2,7 +2,10 @@ package com.close.hook.ads.hook.gc.network
 
 import android.content.Context
 import android.content.Intent
+import android.database.ContentObserver
 import android.net.Uri
+import android.os.Bundle
+import android.os.ParcelFileDescriptor
 import android.util.Log
 import androidx.core.content.contentValuesOf
 import com.close.hook.ads.data.model.BlockedRequest
@@ -12,20 +15,27 @@ import com.close.hook.ads.hook.util.HookUtil
 import com.close.hook.ads.preference.HookPrefs
 import com.close.hook.ads.provider.TemporaryFileProvider
 import com.close.hook.ads.provider.UrlContentProvider
+import com.close.hook.ads.rule.Rule
+import com.close.hook.ads.rule.RuleFile
+import com.close.hook.ads.rule.RuleSnapshot
+import com.close.hook.ads.rule.RuleType
+import com.close.hook.ads.rule.ScopedRuleSet
+import com.close.hook.ads.rule.VerdictCache
 import com.close.hook.ads.util.AppUtils
-import com.google.common.cache.Cache
-import com.google.common.cache.CacheBuilder
 import de.robv.android.xposed.XC_MethodHook
 import de.robv.android.xposed.XposedBridge
-import java.io.ByteArrayOutputStream
 import java.io.IOException
 import java.net.InetAddress
 import java.net.URL
 import java.net.URLDecoder
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
 import java.nio.charset.Charset
 import java.nio.charset.StandardCharsets
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 
 object RequestHook {
 
@@ -36,34 +46,153 @@ object RequestHook {
 
     private val sentRequestsCache: ConcurrentHashMap<String, Boolean> = ConcurrentHashMap()
 
-    private data class ParsingState(
-        var isHeaderParsed: Boolean = false,
-        var contentLength: Int = -1,
-        var isChunked: Boolean = false,
-        var headerSize: Int = 0
-    )
-    private val requestParsingStates = ConcurrentHashMap<Int, ParsingState>()
-    private val responseParsingStates = ConcurrentHashMap<Int, ParsingState>()
-
-    internal val requestBuffers = ConcurrentHashMap<Int, ByteArrayOutputStream>()
-    internal val responseBuffers = ConcurrentHashMap<Int, ByteArrayOutputStream>()
-    internal val pendingRequests = ConcurrentHashMap<Int, BlockedRequest>()
-    private val headerEndMarker = "\r\n\r\n".toByteArray()
-
-    private val URL_CONTENT_URI: Uri = Uri.Builder()
-        .scheme("content")
-        .authority(UrlContentProvider.AUTHORITY)
-        .appendPath(UrlContentProvider.URL_TABLE_NAME)
-        .build()
-
-    private val queryCache: Cache<String, Triple<Boolean, String?, String?>> = CacheBuilder.newBuilder()
-        .maximumSize(8192)
-        .expireAfterAccess(4, TimeUnit.HOURS)
-        .softValues()
-        .build()
+    private val URL_CONTENT_URI: Uri = UrlContentProvider.CONTENT_URI
+    private const val VERDICT_CACHE_SIZE = 8192
+
+    /**
+     * Rule source and the verdicts derived from it, swapped as one unit so a cached
+     * rule reference always resolves against the source that produced it. With
+     * local rules the reference comes from [ScopedRuleSet.matchIndex]; without them
+     * it is a ref [remoteRef] hands out, in order, for each rule the provider
+     * returned, so a rule id of any size resolves. Either
+     * way it can name an allow rule, which lets the request through.
+     */
+    private class RuleState(val rules: ScopedRuleSet?) {
+        val verdicts = VerdictCache(VERDICT_CACHE_SIZE)
+        private val remoteRules = ConcurrentHashMap<Int, Rule>()
+        private val remoteRefs = ConcurrentHashMap<Long, Int>()
+        private val nextRemoteRef = AtomicInteger()
+
+        fun remoteRef(rule: Rule): Int = remoteRefs.computeIfAbsent(rule.id) {
+            nextRemoteRef.getAndIncrement().also { remoteRules[it] = rule }
+        }
+
+        fun ruleAt(ref: Int): Rule? = when {
+            ref < 0 -> null
+            rules != null -> rules.ruleAt(ref)
+            else -> remoteRules[ref]
+        }
+
+        fun ruleIdAt(ref: Int): Long = when {
+            ref < 0 -> -1L
+            rules != null -> rules.ruleIdAt(ref)
+            else -> remoteRules[ref]?.id ?: -1L
+        }
+
+        fun blocks(ref: Int): Boolean = when {
+            ref < 0 -> false
+            rules != null -> !rules.isAllow(ref)
+            else -> remoteRules[ref]?.allow == false
+        }
+    }
+
+    private val hostOf: (String) -> String = AppUtils::extractHostOrSelf
+
+    @Volatile
+    private var ruleState = RuleState(null)
+    private val requestedRuleVersion = AtomicLong(0L)
+    private val ruleLoader = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "AdClose-RuleLoader").apply { isDaemon = true }
+    }
+
+    private val ruleObserver = object : ContentObserver(null) {
+        override fun onChange(selfChange: Boolean, uri: Uri?) {
+            val version = uri?.getQueryParameter(UrlContentProvider.PARAM_VERSION)?.toLongOrNull() ?: return
+            if (version > requestedRuleVersion.getAndAccumulate(version) { a, b -> maxOf(a, b) }) {
+                ruleLoader.execute { loadRuleSnapshot() }
+            }
+        }
+    }
 
     fun init(context: Context) {
         applicationContext = context
+        try {
+            context.contentResolver.registerContentObserver(URL_CONTENT_URI, true, ruleObserver)
+        } catch (e: Exception) {
+            XposedBridge.log("$LOG_PREFIX Rule observer register error: ${e.message}")
+        }
+        ruleLoader.execute { loadRuleSnapshot() }
+        RuleHitRecorder.start(context)
+        ConnectionRegistry.start()
+    }
+
+    // Runs on ruleLoader only. A newer notification queues another load, so a
+    // stale snapshot is never kept once the module has published a newer version.
+    private fun loadRuleSnapshot() {
+        val minVersion = requestedRuleVersion.get()
+        val current = ruleState.rules
+        if (current != null && current.version >= minVersion) return
+
+        val loaded = mapRuleFiles()?.takeIf { it.version >= minVersion }
+            ?: queryRules(minVersion)
+        // Without a newer snapshot, still drop verdicts that predate the change.
+        ruleState = RuleState(loaded ?: current)
+    }
+
+    // Maps the newest global rule file and, if one was published, the file of rules
+    // scoped to this package. Both share a version, and the global file is written last.
+    private fun mapRuleFiles(): ScopedRuleSet? {
+        val files = HookPrefs.listRemoteFiles()
+        val version = files.filter { RuleFile.scopeOf(it) == "" }
+            .mapNotNull(RuleFile::versionOf)
+            .maxOrNull() ?: return null
+        val packageName = applicationContext.packageName
+        val global = mapRuleFile(RuleFile.fileName(version)) ?: return null
+        val scopedFile = RuleFile.fileName(version, packageName)
+        val scoped = if (scopedFile in files) (mapRuleFile(scopedFile) ?: return null) else null
+        return ScopedRuleSet(global, packageName, scoped)
+    }
+
+    private fun mapRuleFile(fileName: String): RuleSnapshot? {
+        return try {
+            HookPrefs.openRemoteFile(fileName)?.let { pfd ->
+                ParcelFileDescriptor.AutoCloseInputStream(pfd).channel.use { channel ->
+                    RuleFile.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+                }
+            }
+        } catch (e: Exception) {
+            XposedBridge.log("$LOG_PREFIX Rule file map error: ${e.message}")
+            null
+        }
+    }
+
+    private fun queryRules(version: Long): ScopedRuleSet? {
+        return try {
+            val packageName = applicationContext.packageName
+            val rules = ArrayList<Rule>()
+            val scopedRules = ArrayList<Rule>()
+            applicationContext.contentResolver.query(
+                URL_CONTENT_URI.buildUpon().appendQueryParameter(UrlContentProvider.PARAM_SCOPE, packageName).build(),
+                arrayOf(Url.URL_ID, Url.URL_TYPE, Url.URL_ADDRESS, Url.URL_SCOPE, Url.URL_ALLOW),
+                null,
+                null,
+                null
+            )?.use { cursor ->
+                val idIndex = cursor.getColumnIndexOrThrow(Url.URL_ID)
+                val typeIndex = cursor.getColumnIndexOrThrow(Url.URL_TYPE)
+                val addressIndex = cursor.getColumnIndexOrThrow(Url.URL_ADDRESS)
+                val scopeIndex = cursor.getColumnIndexOrThrow(Url.URL_SCOPE)
+                val allowIndex = cursor.getColumnIndexOrThrow(Url.URL_ALLOW)
+                while (cursor.moveToNext()) {
+                    val type = RuleType.fromLabel(cursor.getString(typeIndex)) ?: continue
+                    val rule = Rule(
+                        cursor.getLong(idIndex),
+                        type,
+                        cursor.getString(addressIndex),
+                        allow = cursor.getInt(allowIndex) != 0
+                    )
+                    if (cursor.getString(scopeIndex).isNullOrEmpty()) rules.add(rule) else scopedRules.add(rule)
+                }
+            } ?: return null
+            ScopedRuleSet(
+                RuleSnapshot.build(rules, version = version),
+                packageName,
+                scopedRules.takeIf { it.isNotEmpty() }?.let { RuleSnapshot.build(it, version = version) }
+            )
+        } catch (e: Exception) {
+            XposedBridge.log("$LOG_PREFIX Rule snapshot load error: ${e.message}")
+            null
+        }
     }
 
     internal fun formatUrlWithoutQuery(urlObject: Any?): String {
@@ -93,42 +222,90 @@ object RequestHook {
 
     internal fun checkShouldBlockRequest(info: BlockedRequest?): Boolean {
         info ?: return false
-        val blockResult = sequenceOf("URL", "Domain", "KeyWord")
-            .mapNotNull { type ->
-                val value = if (type == "Domain") AppUtils.extractHostOrSelf(info.requestValue) else info.requestValue
-                val result = queryContentProvider(type, value)
-                if (result.first) result else null
+        val state = ruleState
+        return applyVerdict(state, info, classify(state, info.requestValue))
+    }
+
+    internal fun checkShouldBlockRequests(infos: List<BlockedRequest>): BooleanArray {
+        val state = ruleState
+        val refs = classify(state, infos)
+        return BooleanArray(infos.size) { i -> applyVerdict(state, infos[i], refs[i]) }
+    }
+
+    private fun applyVerdict(state: RuleState, info: BlockedRequest, ref: Int): Boolean {
+        if (ref >= 0) {
+            val ruleId = state.ruleIdAt(ref)
+            if (ruleId >= 0) RuleHitRecorder.record(ruleId)
+        }
+        sendBroadcast(info, state, ref)
+        return state.blocks(ref)
+    }
+
+    // One request: the cache, then the local rules, without allocating on either path.
+    private fun classify(state: RuleState, value: String): Int {
+        val fingerprint = VerdictCache.fingerprint(value)
+        val cached = state.verdicts.get(fingerprint)
+        if (cached != VerdictCache.ABSENT) return cached
+        val rules = state.rules
+        val ref = if (rules != null) {
+            rules.classify(value, hostOf)
+        } else {
+            val remote = classifyRemote(listOf(value)) ?: return VerdictCache.NO_RULE
+            remote[0]?.let(state::remoteRef) ?: VerdictCache.NO_RULE
+        }
+        state.verdicts.put(fingerprint, ref)
+        return ref
+    }
+
+    private fun classify(state: RuleState, infos: List<BlockedRequest>): IntArray {
+        val refs = IntArray(infos.size)
+        val fingerprints = LongArray(infos.size)
+        var misses: MutableList<Int>? = null
+        infos.forEachIndexed { i, info ->
+            val fingerprint = VerdictCache.fingerprint(info.requestValue)
+            fingerprints[i] = fingerprint
+            refs[i] = state.verdicts.get(fingerprint)
+            if (refs[i] != VerdictCache.ABSENT) return@forEachIndexed
+
+            val rules = state.rules
+            if (rules != null) {
+                refs[i] = rules.classify(info.requestValue, hostOf)
+                state.verdicts.put(fingerprint, refs[i])
+            } else {
+                (misses ?: ArrayList<Int>().also { misses = it }).add(i)
             }
-            .firstOrNull()
-        blockResult?.let {
-            sendBroadcast(info, true, it.second, it.third)
-            return true
         }
-        sendBroadcast(info, false, null, null)
-        return false
+
+        misses?.let { pending ->
+            val remote = classifyRemote(pending.map { infos[it].requestValue })
+            pending.forEachIndexed { j, i ->
+                refs[i] = remote?.get(j)?.let(state::remoteRef) ?: VerdictCache.NO_RULE
+                if (remote != null) state.verdicts.put(fingerprints[i], refs[i])
+            }
+        }
+        return refs
     }
 
-    private fun queryContentProvider(queryType: String, queryValue: String): Triple<Boolean, String?, String?> {
-        val cacheKey = "$queryType:$queryValue"
-        return queryCache.get(cacheKey) {
-            try {
-                applicationContext.contentResolver.query(
-                    URL_CONTENT_URI,
-                    arrayOf(Url.URL_TYPE, Url.URL_ADDRESS),
-                    null,
-                    arrayOf(queryType, queryValue),
-                    null
-                )?.use { cursor ->
-                    if (cursor.moveToFirst()) {
-                        val urlType = cursor.getString(cursor.getColumnIndexOrThrow(Url.URL_TYPE))
-                        val urlAddress = cursor.getString(cursor.getColumnIndexOrThrow(Url.URL_ADDRESS))
-                        return@get Triple(true, urlType, urlAddress)
-                    }
-                }
-            } catch (e: Exception) {
-                XposedBridge.log("$LOG_PREFIX Query error: ${e.message}")
+    private fun classifyRemote(values: List<String>): List<Rule?>? {
+        return try {
+            val extras = Bundle().apply {
+                putStringArray(UrlContentProvider.EXTRA_VALUES, values.toTypedArray())
+                putStringArray(UrlContentProvider.EXTRA_HOSTS, values.map(hostOf).toTypedArray())
+                putString(UrlContentProvider.EXTRA_SCOPE, applicationContext.packageName)
+            }
+            val result = applicationContext.contentResolver.call(
+                URL_CONTENT_URI, UrlContentProvider.METHOD_CLASSIFY, null, extras
+            ) ?: return null
+            val types = result.getIntArray(UrlContentProvider.EXTRA_RULE_TYPES) ?: return null
+            val ids = result.getLongArray(UrlContentProvider.EXTRA_RULE_IDS) ?: return null
+            val ruleValues = result.getStringArray(UrlContentProvider.EXTRA_RULE_VALUES) ?: return null
+            val allows = result.getBooleanArray(UrlContentProvider.EXTRA_RULE_ALLOWS) ?: BooleanArray(types.size)
+            types.mapIndexed { i, type ->
+                if (type >= 0) Rule(ids[i], RuleType.entries[type], ruleValues[i].orEmpty(), allow = allows[i]) else null
             }
-            Triple(false, null, null)
+        } catch (e: Exception) {
+            XposedBridge.log("$LOG_PREFIX Classify error: ${e.message}")
+            null
         }
     }
 
@@ -162,119 +339,100 @@ object RequestHook {
         return checkShouldBlockRequest(info)
     }
 
-    internal fun processRequestBuffer(key: Int, isHttps: Boolean) {
-        val bufferStream = requestBuffers[key] ?: return
-        val state = requestParsingStates.getOrPut(key) { ParsingState() }
-
-        if (state.isHeaderParsed) return
-
-        val buffer = bufferStream.toByteArray()
-        val headerEndIndex = findBytes(buffer, headerEndMarker, 0)
-        
-        if (headerEndIndex != -1) {
-            state.isHeaderParsed = true
-            state.headerSize = headerEndIndex + headerEndMarker.size
-            val headerString = String(buffer, 0, headerEndIndex, Charsets.UTF_8)
-            
-            if (headerString.startsWith("CONNECT ", ignoreCase = true)) {
-                cleanBuffer(bufferStream, buffer, state.headerSize)
-                state.isHeaderParsed = false
-                return
-            }
-            
-            state.contentLength = parseContentLength(headerString)
-            
-            if (buffer.size >= state.headerSize + state.contentLength) {
-                val bodyBytes = if (state.contentLength > 0) buffer.copyOfRange(state.headerSize, state.headerSize + state.contentLength) else null
-                buildHttpRequest(key, headerString, bodyBytes, isHttps)
-                
-                cleanBuffer(bufferStream, buffer, state.headerSize + state.contentLength)
-                state.isHeaderParsed = false
+    /**
+     * Feeds the remaining bytes of [data], written on [connection]. Each request
+     * completed by them is built, passed through [admit] and queued for its
+     * response; returns whether [admit] refused one, which is then not queued.
+     */
+    internal fun processRequestData(
+        connection: Connection,
+        data: ByteBuffer,
+        isHttps: Boolean,
+        admit: (BlockedRequest) -> BlockedRequest? = { it }
+    ): Boolean {
+        val state = connection.requests
+        var isRefused = false
+        val isLost = synchronized(state) {
+            if (connection.isClosed) return false
+            while (data.hasRemaining()) {
+                state.advance(data)
+                if (state.isComplete) {
+                    val headers = state.headString()
+                    if (!headers.startsWith("CONNECT ", ignoreCase = true)) {
+                        buildHttpRequest(headers, state.body(), isHttps)?.let { info ->
+                            val admitted = admit(info)
+                            if (admitted != null) connection.enqueue(admitted) else isRefused = true
+                        }
+                    }
+                    state.reset()
+                }
             }
+            state.isDiscarding
         }
+        if (isLost) ConnectionRegistry.discard(connection)
+        return isRefused
     }
 
-    internal fun processResponseBuffer(key: Int, param: XC_MethodHook.MethodHookParam?): Boolean {
-        val bufferStream = responseBuffers[key] ?: return false
-        val state = responseParsingStates.getOrPut(key) { ParsingState() }
-        val requestInfo = pendingRequests[key] ?: return false
-
-        if (state.isHeaderParsed && !state.isChunked) {
-            if (bufferStream.size() < state.headerSize + state.contentLength) {
-                return false
-            }
-        }
-        
-        val buffer = bufferStream.toByteArray()
-        val headerEndIndex = findBytes(buffer, headerEndMarker, 0)
-        
-        if (headerEndIndex != -1) {
-            if (!state.isHeaderParsed) {
-                val headerString = String(buffer, 0, headerEndIndex, Charsets.ISO_8859_1)
-                state.isHeaderParsed = true
-                state.headerSize = headerEndIndex + headerEndMarker.size
-                state.contentLength = parseContentLength(headerString)
-                state.isChunked = headerString.contains("Transfer-Encoding: chunked", ignoreCase = true)
-            }
-
-            val bodyStartIndex = state.headerSize
-            var totalResponseSize = 0
-            var bodyBytes: ByteArray? = null
-            var isBlocked = false
-
-            val complete = if (state.isChunked) {
-                parseChunkedBody(buffer, bodyStartIndex)?.let {
-                    totalResponseSize = it.second
-                    bodyBytes = if (HookPrefs.getBoolean(HookPrefs.KEY_COLLECT_RESPONSE_BODY, false)) it.first else null
-                    true
-                } ?: false
-            } else {
-                totalResponseSize = bodyStartIndex + state.contentLength
-                if (buffer.size >= totalResponseSize) {
-                    bodyBytes = if (HookPrefs.getBoolean(HookPrefs.KEY_COLLECT_RESPONSE_BODY, false) && state.contentLength > 0) {
-                        buffer.copyOfRange(bodyStartIndex, totalResponseSize)
-                    } else null
-                    true
-                } else false
-            }
-
-            if (complete) {
-                val headerString = String(buffer, 0, state.headerSize - headerEndMarker.size, Charsets.ISO_8859_1)
-                if (completeAndDispatchRequest(key, requestInfo, headerString, bodyBytes, param)) {
-                    isBlocked = true
+    // Without body collection, response bodies are only counted through.
+    internal fun collectsResponseBody(): Boolean = HookPrefs.getBoolean(HookPrefs.KEY_COLLECT_RESPONSE_BODY, false)
+
+    /**
+     * Feeds the remaining bytes of [data], read on [connection]. Each final response
+     * completed by them is matched with the oldest queued request and checked;
+     * returns whether one was blocked. Interim 1xx responses precede the final one
+     * to the same request and leave the queue alone.
+     */
+    internal fun processResponseData(connection: Connection, data: ByteBuffer, param: XC_MethodHook.MethodHookParam?): Boolean {
+        val state = connection.responses
+        var isBlocked = false
+        val isLost = synchronized(state) {
+            if (connection.isClosed) return false
+            while (data.hasRemaining()) {
+                state.advance(data)
+                if (state.isComplete) {
+                    if (dispatchResponse(connection, param)) isBlocked = true
+                    state.reset()
                 }
-                cleanBuffer(bufferStream, buffer, totalResponseSize)
-                responseParsingStates.remove(key)
-                requestParsingStates.remove(key)
-                pendingRequests.remove(key)
             }
-            return isBlocked
+            state.isDiscarding
         }
-        return false
+        if (isLost) ConnectionRegistry.discard(connection)
+        return isBlocked
     }
 
-    private fun cleanBuffer(stream: ByteArrayOutputStream, buffer: ByteArray, processedSize: Int) {
-        stream.reset()
-        if (buffer.size > processedSize) {
-            stream.write(buffer, processedSize, buffer.size - processedSize)
-        }
+    /**
+     * Checks the response just completed on [connection] against its request;
+     * the caller holds the lock on [Connection.responses] and resets it after.
+     */
+    internal fun dispatchResponse(connection: Connection, param: XC_MethodHook.MethodHookParam?): Boolean {
+        val state = connection.responses
+        val headers = state.headString()
+        if (isInterimResponse(headers)) return false
+        val requestInfo = connection.poll() ?: return false
+        return completeAndDispatchRequest(requestInfo, headers, state.body(), param)
     }
 
-    private fun buildHttpRequest(key: Int, headers: String, body: ByteArray?, isHttps: Boolean) {
+    // 101 Switching Protocols is final: nothing after it is HTTP/1.1.
+    private fun isInterimResponse(headers: String): Boolean {
+        val code = ParsingState.statusCode(headers)
+        return code in 100..199 && code != 101
+    }
+
+    private fun buildHttpRequest(headers: String, body: ByteArray?, isHttps: Boolean): BlockedRequest? {
         val lines = headers.lines()
-        val requestLine = lines.firstOrNull()?.split(" ") ?: return
-        if (requestLine.size < 2) return
+        val requestLine = lines.firstOrNull()?.split(" ") ?: return null
+        if (requestLine.size < 2) return null
 
         val method = requestLine[0]
         val path = requestLine[1]
-        val host = lines.find { it.startsWith("Host:", ignoreCase = true) }?.substring(6)?.trim() ?: return
+        val host = lines.find { it.startsWith("Host:", ignoreCase = true) }?.substring(6)?.trim() ?: return null
         val scheme = if (isHttps) "https" else "http"
         val url = "$scheme://$host$path"
 
         val firstNewline = headers.indexOf("\r\n")
         val cleanedHeaders = if (firstNewline != -1) headers.substring(firstNewline + 2) else headers
 
-        val info = BlockedRequest(
+        return BlockedRequest(
             requestType = if (isHttps) " HTTPS" else " HTTP", 
             requestValue = formatUrlWithoutQuery(Uri.parse(url)),
             method = method,
@@ -290,11 +448,9 @@ object RequestHook {
             dnsHost = null,
             fullAddress = null
         )
-        pendingRequests[key] = info
     }
 
     private fun completeAndDispatchRequest(
-        key: Int, 
         requestInfo: BlockedRequest, 
         headers: String, 
         body: ByteArray?, 
@@ -328,56 +484,17 @@ object RequestHook {
         if (shouldBlock) {
             param?.throwable = IOException("Request blocked by AdClose")
         }
-        pendingRequests.remove(key)
         return shouldBlock
     }
 
-    private fun findBytes(data: ByteArray, pattern: ByteArray, startIndex: Int = 0): Int {
-        for (i in startIndex..(data.size - pattern.size)) {
-            if (data.sliceArray(i until i + pattern.size).contentEquals(pattern)) {
-                return i
-            }
-        }
-        return -1
-    }
-
-    private fun parseContentLength(headers: String): Int {
-        return headers.lines().find { it.startsWith("Content-Length:", ignoreCase = true) }
-            ?.substring(15)?.trim()?.toIntOrNull() ?: 0
-    }
-
-    private fun parseChunkedBody(buffer: ByteArray, bodyStartIndex: Int): Pair<ByteArray, Int>? {
-        val bodyStream = ByteArrayOutputStream()
-        var currentIndex = bodyStartIndex
-        while (true) {
-            val crlfIndex = findBytes(buffer, "\r\n".toByteArray(), currentIndex)
-            if (crlfIndex == -1) return null
-
-            val chunkSizeHex = String(buffer, currentIndex, crlfIndex - currentIndex, Charsets.US_ASCII)
-            val chunkSize = chunkSizeHex.toIntOrNull(16) ?: 0
-
-            if (chunkSize == 0) {
-                currentIndex = crlfIndex + 2
-                val finalCrlfIndex = findBytes(buffer, "\r\n".toByteArray(), currentIndex)
-                if(finalCrlfIndex == -1) return null
-                return bodyStream.toByteArray() to finalCrlfIndex + 2
-            }
-
-            val chunkDataStart = crlfIndex + 2
-            val chunkDataEnd = chunkDataStart + chunkSize
-            if (buffer.size < chunkDataEnd + 2) return null
-
-            bodyStream.write(buffer, chunkDataStart, chunkSize)
-            currentIndex = chunkDataEnd + 2
-        }
-    }
-
-    private fun sendBroadcast(info: BlockedRequest, shouldBlock: Boolean, blockRuleType: String?, ruleUrl: String?) {
-        sendBlockedRequestBroadcast("all", info, shouldBlock, ruleUrl, blockRuleType)
-        sendBlockedRequestBroadcast(if (shouldBlock) "block" else "pass", info, shouldBlock, ruleUrl, blockRuleType)
+    // The matched rule is only resolved once a broadcast is actually going out.
+    private fun sendBroadcast(info: BlockedRequest, state: RuleState, ruleRef: Int) {
+        val shouldBlock = state.blocks(ruleRef)
+        sendBlockedRequestBroadcast("all", info, shouldBlock, state, ruleRef)
+        sendBlockedRequestBroadcast(if (shouldBlock) "block" else "pass", info, shouldBlock, state, ruleRef)
     }
 
-    private fun sendBlockedRequestBroadcast(type: String, info: BlockedRequest, isBlocked: Boolean, ruleUrl: String?, blockRuleType: String?) {
+    private fun sendBlockedRequestBroadcast(type: String, info: BlockedRequest, isBlocked: Boolean, state: RuleState, ruleRef: Int) {
         val key = info.dnsHost ?: info.urlString
         if (key.isNullOrEmpty()) return
 
@@ -411,6 +528,7 @@ object RequestHook {
                 }
             }
 
+            val matchedRule = if (isBlocked) state.ruleAt(ruleRef) else null
             requestBodyUriString = storeBody(info.requestBody, "text/plain")
             responseBodyUriString = storeBody(info.responseBody, info.responseBodyContentType)
 
@@ -421,8 +539,8 @@ object RequestHook {
                 timestamp = System.currentTimeMillis(),
                 requestType = type,
                 isBlocked = isBlocked,
-                url = ruleUrl,
-                blockType = blockRuleType,
+                url = matchedRule?.value,
+                blockType = matchedRule?.type?.label,
                 method = info.method,
                 urlString = info.urlString,
                 requestHeaders = info.requestHeaders,
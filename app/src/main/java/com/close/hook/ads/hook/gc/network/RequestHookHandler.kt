@@ -122,10 +122,8 @@ internal object RequestHookHandler {
                 val len = param.args[3] as Int
                 if (len <= 0) return@hookAllMethods
 
-                val key = System.identityHashCode(socket)
-                val buffer = RequestHook.requestBuffers.getOrPut(key) { ByteArrayOutputStream() }
-                buffer.write(bytes, offset, len)
-                RequestHook.processRequestBuffer(key, isHttps = false)
+                val connection = ConnectionRegistry.of(socket)
+                RequestHook.processRequestData(connection, ByteBuffer.wrap(bytes, offset, len), isHttps = false)
             }
 
             HookUtil.hookAllMethods(
@@ -140,10 +138,16 @@ internal object RequestHookHandler {
                 val len = param.result as? Int ?: -1
                 if (len <= 0) return@hookAllMethods
 
-                val key = System.identityHashCode(socket)
-                val buffer = RequestHook.responseBuffers.getOrPut(key) { ByteArrayOutputStream() }
-                buffer.write(bytes, 0, len)
-                RequestHook.processResponseBuffer(key, param)
+                val connection = ConnectionRegistry.of(socket)
+                RequestHook.processResponseData(connection, ByteBuffer.wrap(bytes, 0, len), param)
+            }
+
+            HookUtil.hookAllMethods(
+                "java.net.Socket",
+                "close",
+                "before"
+            ) { param ->
+                ConnectionRegistry.close(param.thisObject)
             }
         } catch (e: Throwable) {
             XposedBridge.log("$LOG_PREFIX Error setting up plain socket hook: ${e.message}")
@@ -193,16 +197,9 @@ internal object RequestHookHandler {
                 try {
                     val srcBuffer = param.args[0] as ByteBuffer
                     if (srcBuffer.hasRemaining()) {
-                        val key = System.identityHashCode(param.thisObject)
-                        val buffer = RequestHook.requestBuffers.getOrPut(key) { ByteArrayOutputStream() }
-
-                        val position = srcBuffer.position()
-                        val bytes = ByteArray(srcBuffer.remaining())
-                        srcBuffer.get(bytes)
-                        srcBuffer.position(position)
-
-                        buffer.write(bytes)
-                        RequestHook.processRequestBuffer(key, isHttps = true)
+                        val connection = ConnectionRegistry.of(param.thisObject)
+                        // A view, so the engine's own position is left alone.
+                        RequestHook.processRequestData(connection, srcBuffer.duplicate(), isHttps = true)
                     }
                 } catch (e: Throwable) {
                     XposedBridge.log("$LOG_PREFIX ConscryptEngine.wrap hook error: ${e.message}")
@@ -221,23 +218,24 @@ internal object RequestHookHandler {
                     val bytesProduced = result.bytesProduced()
 
                     if (bytesProduced > 0) {
-                        val key = System.identityHashCode(param.thisObject)
-                        val buffer = RequestHook.responseBuffers.getOrPut(key) { ByteArrayOutputStream() }
-
-                        val position = dstBuffer.position()
-                        val start = position - bytesProduced
-                        val bytes = ByteArray(bytesProduced)
-                        for (i in 0 until bytesProduced) {
-                           bytes[i] = dstBuffer.get(start + i)
-                        }
-
-                        buffer.write(bytes)
-                        RequestHook.processResponseBuffer(key, param)
+                        val connection = ConnectionRegistry.of(param.thisObject)
+                        // The bytes just produced, ending at the engine's current position.
+                        val produced = dstBuffer.duplicate()
+                        produced.limit(dstBuffer.position())
+                        produced.position(dstBuffer.position() - bytesProduced)
+                        RequestHook.processResponseData(connection, produced, param)
                     }
                 } catch (e: Throwable) {
                     XposedBridge.log("$LOG_PREFIX ConscryptEngine.unwrap hook error: ${e.message}")
                 }
             }
+
+            // Either side closing ends the connection for the parsers.
+            for (method in arrayOf("closeInbound", "closeOutbound")) {
+                HookUtil.hookAllMethods(conscryptEngineClass, method, "before") { param ->
+                    ConnectionRegistry.close(param.thisObject)
+                }
+            }
         } catch (e: Throwable) {
             XposedBridge.log("$LOG_PREFIX Error setting up ConscryptEngine hook: ${e.message}")
         }
@@ -0,0 +1,77 @@
+package com.close.hook.ads.hook.gc.network
+
+import android.content.Context
+import android.os.Bundle
+import com.close.hook.ads.provider.UrlContentProvider
+import de.robv.android.xposed.XposedBridge
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Counts rule hits inside the hooked process and hands them to the module app in
+ * periodic batches, so a blocked request costs a striped increment rather than a
+ * provider call. Counts that fail to send are kept for the next flush.
+ */
+internal object RuleHitRecorder {
+
+    private const val LOG_PREFIX = "[RuleHitRecorder] "
+    private const val FLUSH_INTERVAL_SECONDS = 30L
+
+    private class Counter {
+        val hits = LongAdder()
+        @Volatile
+        var lastHit = 0L
+    }
+
+    private val counters = ConcurrentHashMap<Long, Counter>()
+    private val started = AtomicBoolean(false)
+    private lateinit var applicationContext: Context
+
+    private val flusher = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "AdClose-RuleHits").apply { isDaemon = true }
+    }
+
+    fun start(context: Context) {
+        if (!started.compareAndSet(false, true)) return
+        applicationContext = context
+        flusher.scheduleWithFixedDelay(::flush, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS)
+    }
+
+    fun record(ruleId: Long) {
+        val counter = counters[ruleId] ?: counters.computeIfAbsent(ruleId) { Counter() }
+        counter.hits.increment()
+        counter.lastHit = System.currentTimeMillis()
+    }
+
+    private fun flush() {
+        val ids = ArrayList<Long>()
+        val counts = ArrayList<Long>()
+        val lastHits = ArrayList<Long>()
+        counters.forEach { (id, counter) ->
+            val count = counter.hits.sumThenReset()
+            if (count > 0) {
+                ids.add(id)
+                counts.add(count)
+                lastHits.add(counter.lastHit)
+            }
+        }
+        if (ids.isEmpty()) return
+
+        try {
+            val extras = Bundle().apply {
+                putLongArray(UrlContentProvider.EXTRA_RULE_IDS, ids.toLongArray())
+                putLongArray(UrlContentProvider.EXTRA_HIT_COUNTS, counts.toLongArray())
+                putLongArray(UrlContentProvider.EXTRA_LAST_HITS, lastHits.toLongArray())
+            }
+            applicationContext.contentResolver.call(
+                UrlContentProvider.CONTENT_URI, UrlContentProvider.METHOD_RECORD_HITS, null, extras
+            )
+        } catch (e: Exception) {
+            XposedBridge.log("$LOG_PREFIX Flush error: ${e.message}")
+            ids.forEachIndexed { i, id -> counters[id]?.hits?.add(counts[i]) }
+        }
+    }
+}
@@ -25,6 +25,7 @@ import kotlinx.serialization.json.longOrNull
 import java.io.FileNotFoundException
 import java.io.FileOutputStream
 import java.io.InputStreamReader
+import java.nio.ByteBuffer
 import java.nio.charset.StandardCharsets
 import java.util.concurrent.ConcurrentHashMap
 
@@ -315,6 +316,44 @@ object HookPrefs {
         }
     }
 
+    fun listRemoteFiles(): Array<String> {
+        return try {
+            fileAccessor?.listRemoteFiles() ?: emptyArray()
+        } catch (e: Exception) {
+            emptyArray()
+        }
+    }
+
+    fun openRemoteFile(fileName: String): ParcelFileDescriptor? {
+        return try {
+            fileAccessor?.openRemoteFile(fileName, "r")
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to open remote file: $fileName", e)
+            null
+        }
+    }
+
+    fun writeBytesToFile(fileName: String, data: ByteBuffer): Boolean {
+        val accessor = fileAccessor ?: return false
+        return try {
+            accessor.openRemoteFile(fileName, "rw")?.use { pfd ->
+                FileOutputStream(pfd.fileDescriptor).use { fos ->
+                    val channel = fos.channel
+                    channel.truncate(0)
+                    val buffer = data.duplicate()
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer)
+                    }
+                }
+            } != null
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to write bytes to file: $fileName", e)
+            false
+        }
+    }
+
+    fun deleteRemoteFile(fileName: String): Boolean = deleteConfigFile(fileName)
+
     private fun deleteConfigFile(fileName: String): Boolean {
         return try {
             fileAccessor?.deleteRemoteFile(fileName) ?: false
@@ -7,16 +7,25 @@ import android.content.UriMatcher
 import android.database.Cursor
 import android.database.MatrixCursor
 import android.net.Uri
+import android.os.Bundle
+import com.close.hook.ads.data.dao.RuleHitDao
 import com.close.hook.ads.data.dao.UrlDao
 import com.close.hook.ads.data.database.UrlDatabase
 import com.close.hook.ads.data.model.Url
+import com.close.hook.ads.data.repository.RuleRepository
+import com.close.hook.ads.rule.RuleType
 
 class UrlContentProvider : ContentProvider() {
 
     private lateinit var urlDao: UrlDao
+    private lateinit var ruleHitDao: RuleHitDao
+    private lateinit var ruleRepository: RuleRepository
 
     override fun onCreate(): Boolean = context?.let {
-        urlDao = UrlDatabase.getDatabase(it).urlDao
+        val database = UrlDatabase.getDatabase(it)
+        urlDao = database.urlDao
+        ruleHitDao = database.ruleHitDao
+        ruleRepository = RuleRepository(it, database)
         true
     } ?: false
 
@@ -27,31 +36,73 @@ class UrlContentProvider : ContentProvider() {
         selectionArgs: Array<String>?,
         sortOrder: String?
     ): Cursor? = when (uriMatcher.match(uri)) {
-        ID_URL_DATA -> handleQueryData(selectionArgs)
+        ID_URL_DATA -> handleQueryData(uri.getQueryParameter(PARAM_SCOPE), selectionArgs)
         ID_URL_DATA_ITEM -> null
         else -> null
     }
 
-    private fun handleQueryData(selectionArgs: Array<String>?): Cursor? {
+    // A scope limits both the listing and the match to global rules plus that package's rules.
+    private fun handleQueryData(scope: String?, selectionArgs: Array<String>?): Cursor? {
         val urls: List<Url> = if (selectionArgs == null || selectionArgs.size != 2) {
-            urlDao.findAllList()
+            if (scope == null) urlDao.findAllList() else urlDao.findListForScope(scope)
         } else {
             val (queryType, queryValue) = selectionArgs
-            val result = when (queryType) {
-                "URL" -> urlDao.findUrlMatch(queryValue)
-                "Domain" -> urlDao.findDomainMatch(queryValue)
-                "KeyWord" -> urlDao.findKeywordMatch(queryValue)
-                else -> null
-            }
-            listOfNotNull(result)
+            val result = RuleType.fromLabel(queryType)?.let { ruleRepository.rules(scope).match(it, queryValue) }
+            listOfNotNull(result?.let { Url(it.type, it.value, it.id, it.scope, it.allow) })
         }
         return urlsToCursor(urls)
     }
 
+    override fun call(method: String, arg: String?, extras: Bundle?): Bundle? = when (method) {
+        METHOD_CLASSIFY -> handleClassify(extras)
+        METHOD_RECORD_HITS -> handleRecordHits(extras)
+        else -> null
+    }
+
+    private fun handleRecordHits(extras: Bundle?): Bundle? {
+        val ids = extras?.getLongArray(EXTRA_RULE_IDS) ?: return null
+        val counts = extras.getLongArray(EXTRA_HIT_COUNTS) ?: return null
+        val lastHits = extras.getLongArray(EXTRA_LAST_HITS) ?: return null
+        if (counts.size != ids.size || lastHits.size != ids.size) return null
+
+        ruleHitDao.recordHits(ids, counts, lastHits)
+        return Bundle.EMPTY
+    }
+
+    private fun handleClassify(extras: Bundle?): Bundle? {
+        val values = extras?.getStringArray(EXTRA_VALUES) ?: return null
+        val hosts = extras.getStringArray(EXTRA_HOSTS) ?: return null
+        if (hosts.size != values.size) return null
+
+        val rules = ruleRepository.rules(extras.getString(EXTRA_SCOPE))
+        val types = IntArray(values.size)
+        val ids = LongArray(values.size)
+        val ruleValues = arrayOfNulls<String>(values.size)
+        val allows = BooleanArray(values.size)
+        for (i in values.indices) {
+            val index = rules.matchIndex(values[i], hosts[i])
+            if (index >= 0) {
+                val rule = rules.ruleAt(index)
+                types[i] = rule.type.ordinal
+                ids[i] = rule.id
+                ruleValues[i] = rule.value
+                allows[i] = rule.allow
+            } else {
+                types[i] = -1
+            }
+        }
+        return Bundle().apply {
+            putIntArray(EXTRA_RULE_TYPES, types)
+            putLongArray(EXTRA_RULE_IDS, ids)
+            putStringArray(EXTRA_RULE_VALUES, ruleValues)
+            putBooleanArray(EXTRA_RULE_ALLOWS, allows)
+        }
+    }
+
     private fun urlsToCursor(urls: List<Url>): MatrixCursor {
-        val cursor = MatrixCursor(arrayOf(Url.URL_TYPE, Url.URL_ADDRESS))
+        val cursor = MatrixCursor(arrayOf(Url.URL_ID, Url.URL_TYPE, Url.URL_ADDRESS, Url.URL_SCOPE, Url.URL_ALLOW))
         urls.forEach { url ->
-            cursor.addRow(arrayOf(url.type, url.url))
+            cursor.addRow(arrayOf(url.id, url.type.label, url.url, url.scope, if (url.allow) 1 else 0))
         }
         return cursor
     }
@@ -64,8 +115,8 @@ class UrlContentProvider : ContentProvider() {
 
     override fun insert(uri: Uri, values: ContentValues?): Uri? =
         if (uriMatcher.match(uri) == ID_URL_DATA && values != null) {
-            urlDao.insert(values.toUrl()).takeIf { it > 0 }?.let { id ->
-                notifyChange(uri)
+            values.toUrl()?.let { urlDao.insert(it) }?.takeIf { it > 0 }?.let { id ->
+                ruleRepository.onRulesWritten()
                 ContentUris.withAppendedId(uri, id)
             }
         } else null
@@ -73,28 +124,56 @@ class UrlContentProvider : ContentProvider() {
     override fun delete(uri: Uri, selection: String?, selectionArgs: Array<String>?): Int =
         if (uriMatcher.match(uri) == ID_URL_DATA_ITEM) {
             urlDao.deleteById(ContentUris.parseId(uri)).also { count ->
-                if (count > 0) notifyChange(uri)
+                if (count > 0) ruleRepository.onRulesWritten()
             }
         } else 0
 
     override fun update(uri: Uri, values: ContentValues?, selection: String?, selectionArgs: Array<String>?): Int =
         if (uriMatcher.match(uri) == ID_URL_DATA_ITEM && values != null) {
-            val url = values.toUrl().apply { id = ContentUris.parseId(uri) }
-            urlDao.update(url).also { count ->
-                if (count > 0) notifyChange(uri)
+            val url = values.toUrl()?.let { edit ->
+                urlDao.findById(ContentUris.parseId(uri))?.edited(edit.type, edit.url, edit.scope, edit.allow)
+            }
+            (url?.let { urlDao.update(it) } ?: 0).also { count ->
+                if (count > 0) ruleRepository.onRulesWritten()
             }
         } else 0
 
-    private fun notifyChange(uri: Uri) {
-        context?.contentResolver?.notifyChange(uri, null)
-    }
-
-    private fun ContentValues.toUrl(): Url =
-        Url(type = getAsString(Url.URL_TYPE).orEmpty(), url = getAsString(Url.URL_ADDRESS).orEmpty())
+    // Values carry the type label; an unknown type is rejected.
+    private fun ContentValues.toUrl(): Url? =
+        RuleType.fromLabel(getAsString(Url.URL_TYPE))?.let { type ->
+            Url(
+                type = type,
+                url = getAsString(Url.URL_ADDRESS).orEmpty(),
+                scope = getAsString(Url.URL_SCOPE).orEmpty(),
+                allow = getAsBoolean(Url.URL_ALLOW) ?: false
+            )
+        }
 
     companion object {
         const val AUTHORITY = "com.close.hook.ads.provider.url"
         const val URL_TABLE_NAME = "url_info"
+        const val PARAM_VERSION = "version"
+        const val PARAM_SCOPE = "scope"
+
+        // Batch classification in one binder transaction: EXTRA_VALUES, EXTRA_HOSTS and the
+        // caller's package as EXTRA_SCOPE in, one rule type ordinal (-1 for no match), rule id,
+        // rule value and allow flag per input out. A matched allow rule means the value passes.
+        const val METHOD_CLASSIFY = "classify"
+        const val EXTRA_VALUES = "values"
+        const val EXTRA_HOSTS = "hosts"
+        const val EXTRA_SCOPE = "scope"
+        const val EXTRA_RULE_TYPES = "rule_types"
+        const val EXTRA_RULE_IDS = "rule_ids"
+        const val EXTRA_RULE_VALUES = "rule_values"
+        const val EXTRA_RULE_ALLOWS = "rule_allows"
+
+        // Hit counts batched by the hooked process: EXTRA_RULE_IDS with matching
+        // EXTRA_HIT_COUNTS and EXTRA_LAST_HITS (epoch millis) in.
+        const val METHOD_RECORD_HITS = "record_hits"
+        const val EXTRA_HIT_COUNTS = "hit_counts"
+        const val EXTRA_LAST_HITS = "last_hits"
+
+        val CONTENT_URI: Uri = Uri.parse("content://$AUTHORITY/$URL_TABLE_NAME")
         private const val ID_URL_DATA = 1
         private const val ID_URL_DATA_ITEM = 2
 
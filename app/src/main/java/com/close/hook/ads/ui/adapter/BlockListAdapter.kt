@@ -3,15 +3,18 @@ package com.close.hook.ads.ui.adapter
 import android.content.ClipData
 import android.content.ClipboardManager
 import android.content.Context
+import android.text.format.DateUtils
 import android.view.LayoutInflater
+import android.view.View
 import android.view.ViewGroup
 import android.widget.Toast
+import androidx.paging.PagingDataAdapter
 import androidx.recyclerview.selection.ItemDetailsLookup
 import androidx.recyclerview.selection.SelectionTracker
 import androidx.recyclerview.widget.DiffUtil
-import androidx.recyclerview.widget.ListAdapter
 import androidx.recyclerview.widget.RecyclerView
 import com.close.hook.ads.R
+import com.close.hook.ads.data.model.RuleHit
 import com.close.hook.ads.data.model.Url
 import com.close.hook.ads.databinding.ItemBlockListBinding
 import com.close.hook.ads.util.dp
@@ -20,10 +23,21 @@ class BlockListAdapter(
     private val context: Context,
     private val onRemoveUrl: (Url) -> Unit,
     private val onEditUrl: (Url) -> Unit
-) : ListAdapter<Url, BlockListAdapter.ViewHolder>(DIFF_CALLBACK) {
+) : PagingDataAdapter<Url, BlockListAdapter.ViewHolder>(DIFF_CALLBACK) {
 
     var tracker: SelectionTracker<Url>? = null
 
+    // Only rows whose counts changed are rebound.
+    var ruleHits: Map<Long, RuleHit> = emptyMap()
+        set(value) {
+            if (field == value) return
+            val old = field
+            field = value
+            snapshot().forEachIndexed { position, item ->
+                if (item != null && old[item.id] != value[item.id]) notifyItemChanged(position, PAYLOAD_HITS)
+            }
+        }
+
     override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): ViewHolder {
         val binding =
             ItemBlockListBinding.inflate(LayoutInflater.from(parent.context), parent, false)
@@ -31,12 +45,20 @@ class BlockListAdapter(
     }
 
     override fun onBindViewHolder(holder: ViewHolder, position: Int) {
-        val item = getItem(position)
+        val item = getItem(position) ?: return
         tracker?.let {
             holder.bind(item, it.isSelected(item))
         }
     }
 
+    override fun onBindViewHolder(holder: ViewHolder, position: Int, payloads: MutableList<Any>) {
+        if (payloads.isNotEmpty() && payloads.all { it == PAYLOAD_HITS }) {
+            getItem(position)?.let(holder::bindHits)
+        } else {
+            onBindViewHolder(holder, position)
+        }
+    }
+
     inner class ViewHolder(
         private val binding: ItemBlockListBinding,
         private val onRemoveUrl: (Url) -> Unit,
@@ -47,7 +69,7 @@ class BlockListAdapter(
         fun getItemDetails(): ItemDetailsLookup.ItemDetails<Url> =
             object : ItemDetailsLookup.ItemDetails<Url>() {
                 override fun getPosition(): Int = bindingAdapterPosition
-                override fun getSelectionKey(): Url? = getItem(bindingAdapterPosition)
+                override fun getSelectionKey(): Url? = peek(bindingAdapterPosition)
             }
 
         init {
@@ -59,21 +81,20 @@ class BlockListAdapter(
                 edit.setOnClickListener {
                     val position = bindingAdapterPosition
                     if (position != RecyclerView.NO_POSITION) {
-                        onEditUrl(getItem(position))
+                        peek(position)?.let(onEditUrl)
                     }
                 }
                 delete.setOnClickListener {
                     val position = bindingAdapterPosition
                     if (position != RecyclerView.NO_POSITION) {
-                        onRemoveUrl(getItem(position))
+                        peek(position)?.let(onRemoveUrl)
                     }
                 }
                 cardView.setOnClickListener {
                     if (tracker == null || !tracker.hasSelection()) {
                         val position = bindingAdapterPosition
                         if (position != RecyclerView.NO_POSITION) {
-                            val item = getItem(position)
-                            copyToClipboard(item.type, item.url)
+                            peek(position)?.let { copyToClipboard(it.type.label, it.url) }
                         }
                     }
                 }
@@ -83,10 +104,26 @@ class BlockListAdapter(
         fun bind(item: Url, isSelected: Boolean) {
             with(binding) {
                 url.text = item.url
-                type.text = item.type.replaceFirstChar { if (it.isLowerCase()) it.titlecase() else it.toString() }
+                type.text = listOfNotNull(
+                    item.type.label,
+                    context.getString(R.string.allow_rule).takeIf { item.allow },
+                    item.scope.ifEmpty { null }
+                ).joinToString(" · ")
                 cardView.isChecked = isSelected
                 container.setPadding(16.dp, 12.dp, if (isSelected) 35.dp else 16.dp, 12.dp)
             }
+            bindHits(item)
+        }
+
+        fun bindHits(item: Url) {
+            val hit = ruleHits[item.id]?.takeIf { it.hitCount > 0 }
+            binding.hits.visibility = if (hit != null) View.VISIBLE else View.GONE
+            if (hit != null) {
+                val lastHit = DateUtils.getRelativeTimeSpanString(
+                    hit.lastHit, System.currentTimeMillis(), DateUtils.MINUTE_IN_MILLIS
+                )
+                binding.hits.text = context.getString(R.string.rule_hits, hit.hitCount, lastHit)
+            }
         }
 
         private fun copyToClipboard(type: String, url: String) {
@@ -98,9 +135,11 @@ class BlockListAdapter(
     }
 
     companion object {
+        private const val PAYLOAD_HITS = "hits"
+
         private val DIFF_CALLBACK = object : DiffUtil.ItemCallback<Url>() {
             override fun areItemsTheSame(oldItem: Url, newItem: Url): Boolean =
-                oldItem.url == newItem.url && oldItem.type == newItem.type
+                oldItem.url == newItem.url && oldItem.type == newItem.type && oldItem.scope == newItem.scope
 
             override fun areContentsTheSame(oldItem: Url, newItem: Url): Boolean =
                 oldItem == newItem
@@ -3,12 +3,14 @@ package com.close.hook.ads.ui.fragment.block
 import android.content.ClipData
 import android.content.ClipboardManager
 import android.content.Context
+import android.content.Intent
 import android.graphics.drawable.AnimatedVectorDrawable
 import android.net.Uri
 import android.os.Bundle
 import android.provider.OpenableColumns
 import android.text.Editable
 import android.text.TextWatcher
+import android.text.format.DateUtils
 import android.view.Gravity
 import android.view.LayoutInflater
 import android.view.Menu
@@ -31,6 +33,7 @@ import androidx.fragment.app.viewModels
 import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.lifecycleScope
 import androidx.lifecycle.repeatOnLifecycle
+import androidx.paging.LoadState
 import androidx.recyclerview.selection.ItemDetailsLookup
 import androidx.recyclerview.selection.ItemKeyProvider
 import androidx.recyclerview.selection.Selection
@@ -40,7 +43,14 @@ import androidx.recyclerview.selection.StorageStrategy
 import androidx.recyclerview.widget.LinearLayoutManager
 import androidx.recyclerview.widget.RecyclerView
 import com.close.hook.ads.R
+import com.close.hook.ads.data.model.ImportResult
+import com.close.hook.ads.data.model.RuleSortOrder
+import com.close.hook.ads.data.model.Subscription
+import com.close.hook.ads.data.model.SyncResult
 import com.close.hook.ads.data.model.Url
+import com.close.hook.ads.rule.RegexMatcher
+import com.close.hook.ads.rule.RuleListParser
+import com.close.hook.ads.rule.RuleType
 import com.close.hook.ads.util.AppUtils
 import com.close.hook.ads.databinding.FragmentBlockListBinding
 import com.close.hook.ads.databinding.ItemBlockListAddBinding
@@ -131,12 +141,20 @@ class BlockListFragment : BaseFragment<FragmentBlockListBinding>(), OnBackPressL
     private fun initObserve() {
         viewLifecycleOwner.lifecycleScope.launch {
             viewLifecycleOwner.repeatOnLifecycle(Lifecycle.State.STARTED) {
-                viewModel.blackList.collectLatest { blackList ->
-                    mAdapter.submitList(blackList) {
-                        binding.progressBar.visibility = View.GONE
-                        updateViewFlipper(blackList.size)
+                launch {
+                    viewModel.blackList.collectLatest { mAdapter.submitData(it) }
+                }
+                launch {
+                    mAdapter.loadStateFlow.collectLatest { loadStates ->
+                        if (loadStates.refresh is LoadState.NotLoading) {
+                            binding.progressBar.visibility = View.GONE
+                            updateViewFlipper(mAdapter.itemCount)
+                        }
                     }
                 }
+                launch {
+                    viewModel.ruleHits.collectLatest { mAdapter.ruleHits = it }
+                }
             }
         }
     }
@@ -250,7 +268,7 @@ class BlockListFragment : BaseFragment<FragmentBlockListBinding>(), OnBackPressL
     private fun onCopy() {
         selectedItems?.let { selection ->
             val uniqueTypeUrls = selection
-                .map { "${it.type}, ${it.url}" }
+                .map { RuleListParser.format(it.toRule()) }
                 .distinct()
                 .joinToString(separator = "\n")
 
@@ -326,6 +344,14 @@ class BlockListFragment : BaseFragment<FragmentBlockListBinding>(), OnBackPressL
                 }
             }
 
+            subscriptions.setOnClickListener {
+                showSubscriptionsDialog()
+            }
+
+            sort.setOnClickListener {
+                showSortDialog()
+            }
+
             export.setOnClickListener {
                 backupSAFLauncher.launch("block_list.rule")
             }
@@ -340,29 +366,121 @@ class BlockListFragment : BaseFragment<FragmentBlockListBinding>(), OnBackPressL
         }
     }
 
+    private fun showSortDialog() {
+        val orders = RuleSortOrder.entries
+        val labels = arrayOf(
+            getString(R.string.sort_by_newest),
+            getString(R.string.sort_by_hits),
+            getString(R.string.sort_by_last_hit)
+        )
+        MaterialAlertDialogBuilder(requireContext())
+            .setTitle(R.string.sort_by)
+            .setSingleChoiceItems(labels, viewModel.sortOrder.value.ordinal) { dialog, which ->
+                viewModel.setSortOrder(orders[which])
+                dialog.dismiss()
+            }
+            .setNegativeButton(android.R.string.cancel, null)
+            .show()
+    }
+
+    private fun showSubscriptionsDialog() {
+        val subscriptions = viewModel.subscriptions.value
+        MaterialAlertDialogBuilder(requireContext())
+            .setTitle(R.string.subscriptions)
+            .apply {
+                if (subscriptions.isEmpty()) {
+                    setMessage(R.string.subscriptions_empty)
+                } else {
+                    setItems(subscriptions.map(::subscriptionLabel).toTypedArray()) { _, which ->
+                        showSubscriptionActions(subscriptions[which])
+                    }
+                    setPositiveButton(R.string.refresh_all) { _, _ -> refreshSubscriptions() }
+                }
+            }
+            .setNeutralButton(R.string.add_subscription) { _, _ ->
+                subscriptionSAFLauncher.launch(arrayOf("text/plain", "application/octet-stream"))
+            }
+            .setNegativeButton(android.R.string.cancel, null)
+            .show()
+    }
+
+    private fun subscriptionLabel(subscription: Subscription): String {
+        val updated = if (subscription.lastUpdated > 0) {
+            DateUtils.getRelativeTimeSpanString(subscription.lastUpdated, System.currentTimeMillis(), DateUtils.MINUTE_IN_MILLIS)
+        } else {
+            getString(R.string.subscription_never_refreshed)
+        }
+        return "${subscription.name}\n${getString(R.string.subscription_summary, subscription.ruleCount, updated)}"
+    }
+
+    private fun showSubscriptionActions(subscription: Subscription) {
+        MaterialAlertDialogBuilder(requireContext())
+            .setTitle(subscription.name)
+            .setItems(arrayOf(getString(R.string.refresh), getString(R.string.delete))) { _, which ->
+                if (which == 0) {
+                    syncSubscription(subscription.name) { viewModel.refreshSubscription(subscription) }
+                } else {
+                    viewModel.removeSubscription(subscription)
+                }
+            }
+            .setNegativeButton(android.R.string.cancel, null)
+            .show()
+    }
+
+    private fun syncSubscription(name: String, sync: suspend () -> SyncResult) {
+        lifecycleScope.launch {
+            runCatching { sync() }
+                .onSuccess {
+                    Toast.makeText(
+                        requireContext(),
+                        getString(R.string.subscription_synced, name, it.inserted, it.deleted),
+                        Toast.LENGTH_SHORT
+                    ).show()
+                }
+                .onFailure { showErrorDialog(getString(R.string.subscription_failed, name), it) }
+        }
+    }
+
+    private fun refreshSubscriptions() {
+        lifecycleScope.launch {
+            val results = viewModel.refreshSubscriptions()
+            results.forEach { (subscription, result) ->
+                result.exceptionOrNull()?.let { showErrorDialog(getString(R.string.subscription_failed, subscription.name), it) }
+            }
+            val synced = results.values.mapNotNull { it.getOrNull() }
+            Toast.makeText(
+                requireContext(),
+                getString(R.string.subscription_synced, getString(R.string.subscriptions), synced.sumOf { it.inserted }, synced.sumOf { it.deleted }),
+                Toast.LENGTH_SHORT
+            ).show()
+        }
+    }
+
     private fun showRuleDialog(url: Url? = null) {
         val dialogBinding = ItemBlockListAddBinding.inflate(LayoutInflater.from(requireContext()))
-        val ruleTypes = arrayOf("Domain", "URL", "KeyWord")
-        var selectedType = url?.type ?: ruleTypes[1]
+        val ruleTypes = arrayOf(RuleType.DOMAIN, RuleType.URL, RuleType.KEYWORD, RuleType.REGEX)
+        var selectedType = url?.type ?: RuleType.URL
 
         dialogBinding.editText.setText(url?.url ?: "")
-        dialogBinding.type.setText(selectedType)
+        dialogBinding.scope.setText(url?.scope ?: "")
+        dialogBinding.allow.isChecked = url?.allow ?: false
+        dialogBinding.type.setText(selectedType.label)
 
         dialogBinding.type.setOnClickListener {
             val currentTypeIndex = ruleTypes.indexOf(selectedType)
             MaterialAlertDialogBuilder(requireContext())
-                .setTitle("Select Rule Type")
-                .setSingleChoiceItems(ruleTypes, currentTypeIndex) { dialog, which ->
+                .setTitle(R.string.select_rule_type)
+                .setSingleChoiceItems(ruleTypes.map { it.label }.toTypedArray(), currentTypeIndex) { dialog, which ->
                     val newType = ruleTypes[which]
                     if (selectedType != newType) {
-                        if (selectedType == "URL" && newType == "Domain") {
+                        if (selectedType == RuleType.URL && newType == RuleType.DOMAIN) {
                             val currentUrl = dialogBinding.editText.text.toString()
                             if (currentUrl.isNotEmpty()) {
                                 dialogBinding.editText.setText(AppUtils.extractHostOrSelf(currentUrl))
                             }
                         }
                         selectedType = newType
-                        dialogBinding.type.setText(selectedType)
+                        dialogBinding.type.setText(selectedType.label)
                     }
                     dialog.dismiss()
                 }
@@ -382,18 +500,20 @@ class BlockListFragment : BaseFragment<FragmentBlockListBinding>(), OnBackPressL
                     return@setPositiveButton
                 }
 
-                val newItem = Url(type = selectedType, url = newUrl).also { it.id = url?.id ?: 0L }
+                if (selectedType == RuleType.REGEX && RegexMatcher.compile(newUrl) == null) {
+                    Toast.makeText(requireContext(), R.string.invalid_regex_error, Toast.LENGTH_SHORT).show()
+                    return@setPositiveButton
+                }
+
+                val scope = dialogBinding.scope.text.toString().trim()
+                val allow = dialogBinding.allow.isChecked
+                val newItem = url?.edited(selectedType, newUrl, scope, allow)
+                    ?: Url(type = selectedType, url = newUrl, scope = scope, allow = allow)
 
                 lifecycleScope.launch {
-                    val isExist = viewModel.dataSource.isExist(selectedType, newUrl)
-                    if (url == null) {
-                        if (!isExist) {
-                            viewModel.addUrl(newItem)
-                        } else {
-                            Toast.makeText(requireContext(), R.string.rule_exists, Toast.LENGTH_SHORT).show()
-                        }
-                    } else {
-                        viewModel.updateUrl(newItem)
+                    val saved = if (url == null) viewModel.addUrl(newItem) else viewModel.updateUrl(newItem)
+                    if (!saved) {
+                        Toast.makeText(requireContext(), R.string.rule_exists, Toast.LENGTH_SHORT).show()
                     }
                 }
             }
@@ -424,7 +544,7 @@ class BlockListFragment : BaseFragment<FragmentBlockListBinding>(), OnBackPressL
                         val allRules = viewModel.getAllUrls()
                         
                         requireContext().contentResolver.openOutputStream(uri)?.bufferedWriter().use { writer ->
-                            allRules.map { "${it.type}, ${it.url}" }
+                            allRules.map { RuleListParser.format(it.toRule()) }
                                 .distinct()
                                 .filter { it.contains(",") }
                                 .sorted()
@@ -447,6 +567,12 @@ class BlockListFragment : BaseFragment<FragmentBlockListBinding>(), OnBackPressL
     private val restoreSAFLauncher =
         registerForActivityResult(ActivityResultContracts.OpenDocument()) { uri: Uri? ->
             uri?.let { validUri ->
+                val progressDialog = MaterialAlertDialogBuilder(requireContext())
+                    .setTitle(R.string.importing_rules)
+                    .setMessage(getString(R.string.import_progress, 0))
+                    .setCancelable(false)
+                    .show()
+
                 lifecycleScope.launch(Dispatchers.IO) {
                     runCatching {
                         val contentResolver = requireContext().contentResolver
@@ -457,40 +583,31 @@ class BlockListFragment : BaseFragment<FragmentBlockListBinding>(), OnBackPressL
                             if (nameIndex != -1) cursor.getString(nameIndex) else "unknown"
                         } ?: "unknown"
 
-                        if (!fileName.endsWith(".rule")) {
+                        if (!fileName.endsWith(".rule") && !fileName.endsWith(".txt") && !fileName.endsWith("hosts")) {
                             throw IllegalArgumentException(getString(R.string.invalid_file_format))
                         }
 
-                        val currentRules = viewModel.getAllUrls()
-                            .map { "${it.type.lowercase()},${it.url}" }
-                            .toSet()
-
-                        val newUrls = contentResolver.openInputStream(validUri)?.bufferedReader()?.useLines { lines ->
-                            lines.mapNotNull { line ->
-                                val parts = line.split(",\\s*".toRegex(), 2).map(String::trim)
-                                if (parts.size == 2 && parts[0].equals("Domain", true) || parts[0].equals("URL", true) || parts[0].equals("KeyWord", true)) {
-                                    Url(parts[0], parts[1])
-                                } else null
-                            }.toList()
-                        }?.distinct() ?: emptyList()
-
-                        val urlsToAdd = newUrls.filter { "${it.type.lowercase()},${it.url}" !in currentRules }
+                        val result = contentResolver.openInputStream(validUri)?.bufferedReader()?.use { reader ->
+                            viewModel.importRules(reader) { progress ->
+                                lifecycleScope.launch {
+                                    progressDialog.setMessage(getString(R.string.import_progress, progress.inserted + progress.skipped))
+                                }
+                            }
+                        } ?: ImportResult()
 
-                        if (urlsToAdd.isNotEmpty()) {
-                            viewModel.addListUrl(urlsToAdd)
-                        }
-                        
-                        val message = if (urlsToAdd.isNotEmpty()) {
-                            getString(R.string.import_success_count, urlsToAdd.size)
-                        } else {
-                            getString(R.string.import_no_new_rules)
+                        val message = when {
+                            result.inserted == 0 -> getString(R.string.import_no_new_rules)
+                            result.skipped > 0 -> getString(R.string.import_success_skipped, result.inserted, result.skipped)
+                            else -> getString(R.string.import_success_count, result.inserted)
                         }
 
                         withContext(Dispatchers.Main) {
+                            progressDialog.dismiss()
                             Toast.makeText(requireContext(), message, Toast.LENGTH_SHORT).show()
                         }
                     }.onFailure {
                         withContext(Dispatchers.Main) {
+                            progressDialog.dismiss()
                             showErrorDialog(getString(R.string.import_failed), it)
                         }
                     }
@@ -498,6 +615,18 @@ class BlockListFragment : BaseFragment<FragmentBlockListBinding>(), OnBackPressL
             }
         }
 
+    // The document stays readable across restarts, so later refreshes need no picker.
+    private val subscriptionSAFLauncher =
+        registerForActivityResult(ActivityResultContracts.OpenDocument()) { uri: Uri? ->
+            uri ?: return@registerForActivityResult
+            val contentResolver = requireContext().contentResolver
+            runCatching { contentResolver.takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION) }
+            val name = contentResolver.query(uri, arrayOf(OpenableColumns.DISPLAY_NAME), null, null, null)?.use { cursor ->
+                if (cursor.moveToFirst()) cursor.getString(0) else null
+            }?.substringBeforeLast('.') ?: uri.lastPathSegment.orEmpty()
+            syncSubscription(name) { viewModel.addSubscription(name, uri.toString()) }
+        }
+
     private fun showErrorDialog(title: String, e: Throwable) {
         MaterialAlertDialogBuilder(requireContext())
             .setTitle(title)
@@ -527,11 +656,11 @@ class BlockListFragment : BaseFragment<FragmentBlockListBinding>(), OnBackPressL
     class CategoryItemKeyProvider(private val adapter: BlockListAdapter) :
         ItemKeyProvider<Url>(SCOPE_CACHED) {
         override fun getKey(position: Int): Url? {
-            return adapter.currentList.getOrNull(position)
+            return if (position in 0 until adapter.itemCount) adapter.peek(position) else null
         }
 
         override fun getPosition(key: Url): Int {
-            val index = adapter.currentList.indexOfFirst { it == key }
+            val index = adapter.snapshot().indexOfFirst { it == key }
             return if (index >= 0) index else RecyclerView.NO_POSITION
         }
     }
@@ -28,6 +28,7 @@ import com.close.hook.ads.R
 import com.close.hook.ads.data.model.RequestInfo
 import com.close.hook.ads.data.model.Url
 import com.close.hook.ads.databinding.FragmentRequestListBinding
+import com.close.hook.ads.rule.RuleType
 import com.close.hook.ads.ui.activity.MainActivity
 import com.close.hook.ads.ui.adapter.RequestListAdapter
 import com.close.hook.ads.ui.fragment.base.BaseFragment
@@ -285,22 +286,21 @@ class RequestListFragment : BaseFragment<FragmentRequestListBinding>(), OnClearC
             if (selection.size() != 0) {
                 lifecycleScope.launch(Dispatchers.IO) {
                     val urlsToAdd = selection.map { request ->
-                        val requestType = request.blockType.takeUnless { it.isNullOrEmpty() } ?: run {
-                            if (request.appName.trim().endsWith("DNS", ignoreCase = true)) "Domain" else "URL"
+                        val requestType = RuleType.fromLabel(request.blockType) ?: run {
+                            if (request.appName.trim().endsWith("DNS", ignoreCase = true)) RuleType.DOMAIN else RuleType.URL
                         }
                         val url = request.url ?: request.request
                         Url(requestType, url)
-                    }.distinct().filterNot {
-                        blockListViewModel.dataSource.isExist(it.type, it.url)
-                    }
+                    }.distinct()
+
+                    val result = blockListViewModel.addListUrl(urlsToAdd)
 
-                    if (urlsToAdd.isNotEmpty()) {
-                        blockListViewModel.addListUrl(urlsToAdd)
-                    }
-                    
                     withContext(Dispatchers.Main) {
                         tracker?.clearSelection()
-                        showSnackbar(getString(R.string.add_to_blocklist_success))
+                        showSnackbar(
+                            if (result.skipped == 0) getString(R.string.add_to_blocklist_success)
+                            else getString(R.string.add_to_blocklist_skipped, result.inserted, result.skipped)
+                        )
                     }
                 }
             }
@@ -312,8 +312,8 @@ class RequestListFragment : BaseFragment<FragmentRequestListBinding>(), OnClearC
             if (selection.iterator().hasNext()) {
                 lifecycleScope.launch(Dispatchers.IO) {
                     selection.forEach { request ->
-                        val requestType = request.blockType.takeUnless { it.isNullOrEmpty() } ?: run {
-                            if (request.appName.trim().endsWith("DNS", ignoreCase = true)) "Domain" else "URL"
+                        val requestType = RuleType.fromLabel(request.blockType) ?: run {
+                            if (request.appName.trim().endsWith("DNS", ignoreCase = true)) RuleType.DOMAIN else RuleType.URL
                         }
                         val urlToRemove = request.url ?: request.request
                         blockListViewModel.removeUrlString(requestType, urlToRemove)
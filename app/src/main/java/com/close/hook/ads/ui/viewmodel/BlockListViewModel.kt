@@ -3,19 +3,33 @@ package com.close.hook.ads.ui.viewmodel
 import android.app.Application
 import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.viewModelScope
+import androidx.paging.Pager
+import androidx.paging.PagingConfig
+import androidx.paging.PagingData
+import androidx.paging.cachedIn
 import com.close.hook.ads.data.DataSource
+import com.close.hook.ads.data.model.ImportResult
+import com.close.hook.ads.data.model.RuleHit
+import com.close.hook.ads.data.model.RuleSortOrder
+import com.close.hook.ads.data.model.Subscription
+import com.close.hook.ads.data.model.SyncResult
 import com.close.hook.ads.data.model.Url
+import com.close.hook.ads.rule.RuleType
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.flow.debounce
 import kotlinx.coroutines.flow.flatMapLatest
 import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
+import java.io.BufferedReader
 
 class BlockListViewModel(application: Application) : AndroidViewModel(application) {
 
@@ -24,20 +38,38 @@ class BlockListViewModel(application: Application) : AndroidViewModel(applicatio
     private val _blackListSearchQuery = MutableStateFlow("")
     val blackListSearchQuery: StateFlow<String> = _blackListSearchQuery.asStateFlow()
 
-    val blackList: StateFlow<List<Url>> = blackListSearchQuery
-        .debounce(300L)
-        .flatMapLatest { dataSource.searchUrls(it) }
+    private val _sortOrder = MutableStateFlow(RuleSortOrder.NEWEST)
+    val sortOrder: StateFlow<RuleSortOrder> = _sortOrder.asStateFlow()
+
+    val blackList: Flow<PagingData<Url>> = combine(blackListSearchQuery.debounce(300L), sortOrder) { query, sort ->
+        query to sort
+    }
+        .flatMapLatest { (query, sort) ->
+            Pager(PagingConfig(pageSize = PAGE_SIZE, enablePlaceholders = false)) {
+                dataSource.searchUrls(query, sort)
+            }.flow
+        }
+        .cachedIn(viewModelScope)
+
+    val ruleHits: StateFlow<Map<Long, RuleHit>> = dataSource.ruleHits()
+        .map { hits -> hits.associateBy { it.ruleId } }
+        .flowOn(Dispatchers.IO)
+        .stateIn(viewModelScope, SharingStarted.WhileSubscribed(5000), emptyMap())
+
+    val subscriptions: StateFlow<List<Subscription>> = dataSource.subscriptions()
         .flowOn(Dispatchers.IO)
-        .stateIn(viewModelScope, SharingStarted.WhileSubscribed(5000), emptyList())
+        .stateIn(viewModelScope, SharingStarted.Eagerly, emptyList())
 
     fun setBlackListSearchQuery(query: String) {
         _blackListSearchQuery.value = query
     }
 
-    fun addUrl(url: Url) = viewModelScope.launch(Dispatchers.IO) {
-        dataSource.addUrl(url)
+    fun setSortOrder(sortOrder: RuleSortOrder) {
+        _sortOrder.value = sortOrder
     }
 
+    suspend fun addUrl(url: Url): Boolean = dataSource.addUrl(url)
+
     fun removeList(list: List<Url>) = viewModelScope.launch(Dispatchers.IO) {
         dataSource.removeList(list)
     }
@@ -50,19 +82,35 @@ class BlockListViewModel(application: Application) : AndroidViewModel(applicatio
         dataSource.removeAll()
     }
 
-    fun addListUrl(list: List<Url>) = viewModelScope.launch(Dispatchers.IO) {
-        dataSource.addListUrl(list)
-    }
+    suspend fun addListUrl(list: List<Url>): ImportResult = dataSource.addListUrl(list)
 
-    fun updateUrl(url: Url) = viewModelScope.launch(Dispatchers.IO) {
-        dataSource.updateUrl(url)
-    }
+    suspend fun updateUrl(url: Url): Boolean = dataSource.updateUrl(url)
 
-    fun removeUrlString(type: String, url: String) = viewModelScope.launch(Dispatchers.IO) {
+    fun removeUrlString(type: RuleType, url: String) = viewModelScope.launch(Dispatchers.IO) {
         dataSource.removeUrlString(type, url)
     }
 
     suspend fun getAllUrls(): List<Url> = withContext(Dispatchers.IO) {
         dataSource.getAllUrls()
     }
+
+    suspend fun importRules(reader: BufferedReader, onProgress: (ImportResult) -> Unit): ImportResult =
+        dataSource.importRules(reader, onProgress)
+
+    suspend fun addSubscription(name: String, uri: String): SyncResult =
+        dataSource.refreshSubscription(dataSource.addSubscription(name, uri))
+
+    suspend fun refreshSubscription(subscription: Subscription): SyncResult =
+        dataSource.refreshSubscription(subscription)
+
+    suspend fun refreshSubscriptions(): Map<Subscription, Result<SyncResult>> =
+        dataSource.refreshSubscriptions()
+
+    fun removeSubscription(subscription: Subscription) = viewModelScope.launch(Dispatchers.IO) {
+        dataSource.removeSubscription(subscription)
+    }
+
+    companion object {
+        private const val PAGE_SIZE = 60
+    }
 }
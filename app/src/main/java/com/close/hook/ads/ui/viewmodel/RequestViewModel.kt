@@ -6,6 +6,7 @@ import androidx.lifecycle.viewModelScope
 import com.close.hook.ads.data.DataSource
 import com.close.hook.ads.data.model.RequestInfo
 import com.close.hook.ads.data.model.Url
+import com.close.hook.ads.rule.RuleType
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
@@ -67,8 +68,8 @@ class RequestViewModel(application: Application) : AndroidViewModel(application)
     }
 
     fun toggleBlockStatus(request: RequestInfo) = viewModelScope.launch(Dispatchers.IO) {
-        val requestType = request.blockType.takeUnless { it.isNullOrEmpty() } ?: run {
-            if (request.appName.trim().endsWith("DNS", ignoreCase = true)) "Domain" else "URL"
+        val requestType = RuleType.fromLabel(request.blockType) ?: run {
+            if (request.appName.trim().endsWith("DNS", ignoreCase = true)) RuleType.DOMAIN else RuleType.URL
         }
         val urlToToggle = request.url ?: request.request
 
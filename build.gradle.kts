@@ -2,6 +2,8 @@
 plugins {
     alias(libs.plugins.androidApplication) apply false
     alias(libs.plugins.kotlinAndroid) apply false
+    alias(libs.plugins.kotlinJvm) apply false
+    alias(libs.plugins.jmh) apply false
     alias(libs.plugins.materialThemeBuilder)
     alias(libs.plugins.ksp) apply false
     alias(libs.plugins.autoresconfig) apply false
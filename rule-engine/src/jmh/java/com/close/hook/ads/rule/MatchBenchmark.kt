@@ -0,0 +1,87 @@
+package com.close.hook.ads.rule
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/**
+ * Per-request lookups against a mapped rule file, the way hooked processes run them.
+ * Each invocation classifies the next request of a fixed stream, so the numbers are
+ * an average over [hitRatio] hits and misses. Run with the gc profiler (the default
+ * in build.gradle.kts) to see bytes allocated per lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class MatchBenchmark {
+
+    @Param("1000", "10000", "100000")
+    @JvmField
+    var ruleCount = 0
+
+    @Param("0.01", "0.1", "0.5")
+    @JvmField
+    var hitRatio = 0.0
+
+    private lateinit var rules: ScopedRuleSet
+    private lateinit var requests: Array<String>
+    private lateinit var fingerprints: LongArray
+    private lateinit var verdicts: VerdictCache
+    private var next = 0
+
+    @Setup
+    fun setUp() {
+        val list = SyntheticRules.rules(ruleCount)
+        rules = ScopedRuleSet(RuleFile.read(RuleFile.write(RuleSnapshot.build(list))))
+        requests = SyntheticRules.requests(list, REQUESTS, hitRatio)
+        fingerprints = LongArray(REQUESTS) { VerdictCache.fingerprint(requests[it]) }
+        verdicts = VerdictCache(REQUESTS * 2)
+        requests.indices.forEach { verdicts.put(fingerprints[it], rules.classify(requests[it], SyntheticRules::hostOf)) }
+    }
+
+    private fun nextRequest(): Int {
+        val i = next
+        next = (i + 1) and (REQUESTS - 1)
+        return i
+    }
+
+    /** Whether [classify] runs the Bloom pre-check, so its gain is measured directly. */
+    @State(Scope.Benchmark)
+    open class Filter {
+        @Param("true", "false")
+        @JvmField
+        var enabled = false
+    }
+
+    /**
+     * A request as the hook classifies it, host extraction included: with the Bloom
+     * pre-check, values it rejects skip the host and the URL and Domain matchers.
+     */
+    @Benchmark
+    fun classify(filter: Filter): Int {
+        val request = requests[nextRequest()]
+        return if (filter.enabled) {
+            rules.classify(request, SyntheticRules::hostOf)
+        } else {
+            rules.matchIndex(request, SyntheticRules.hostOf(request))
+        }
+    }
+
+    /** The Bloom pre-check alone. */
+    @Benchmark
+    fun mightMatch(): Boolean = rules.mightMatch(requests[nextRequest()])
+
+    /** A repeated request answered from the verdict cache. */
+    @Benchmark
+    fun cachedVerdict(): Int = verdicts.get(fingerprints[nextRequest()])
+
+    companion object {
+        private const val REQUESTS = 4096
+    }
+}
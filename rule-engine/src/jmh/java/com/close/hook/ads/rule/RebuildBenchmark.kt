@@ -0,0 +1,57 @@
+package com.close.hook.ads.rule
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+
+/**
+ * What a rule change costs: compiling the snapshot in the app process, writing the
+ * rule file, and mapping it again in a hooked process.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+open class RebuildBenchmark {
+
+    @Param("1000", "10000", "100000")
+    @JvmField
+    var ruleCount = 0
+
+    private lateinit var rules: List<Rule>
+    private lateinit var keywords: KeywordMatcher.Builder
+    private lateinit var snapshot: RuleSnapshot
+    private lateinit var file: ByteBuffer
+
+    @Setup
+    fun setUp() {
+        rules = SyntheticRules.rules(ruleCount)
+        keywords = KeywordMatcher.Builder().addAll(rules.filter { it.type == RuleType.KEYWORD })
+        snapshot = RuleSnapshot.build(rules)
+        file = RuleFile.write(snapshot)
+    }
+
+    @Benchmark
+    fun build(): RuleSnapshot = RuleSnapshot.build(rules)
+
+    /** Rebuild with a kept keyword trie, as the app does after each change. */
+    @Benchmark
+    fun buildWithKeywordTrie(): RuleSnapshot = RuleSnapshot.build(rules, keywords)
+
+    @Benchmark
+    fun write(): ByteBuffer = RuleFile.write(snapshot)
+
+    /** Mapping includes compiling the Regex rules, which are not stored in the file. */
+    @Benchmark
+    fun read(): RuleSnapshot = RuleFile.read(file)
+}
@@ -0,0 +1,55 @@
+package com.close.hook.ads.rule
+
+import kotlin.random.Random
+
+/**
+ * Deterministic rule lists and request streams shaped like a merged hosts file plus
+ * an EasyList extract: mostly Domain rules, some URL prefixes and keywords, a few
+ * regexes and a small share of exceptions. Every hit request is built from a rule
+ * known to match it, and miss requests use hosts and paths no rule covers.
+ */
+object SyntheticRules {
+
+    private val TLDS = arrayOf("com", "net", "org", "io", "cn")
+    private val WORDS = arrayOf("ads", "track", "metric", "pixel", "banner", "stat", "cdn", "log", "beacon", "sdk")
+
+    fun rules(count: Int, seed: Int = 42): List<Rule> {
+        val random = Random(seed)
+        val regexCount = (count / 100).coerceIn(1, 500)
+        return List(count) { i ->
+            val id = i.toLong() + 1
+            when {
+                i < regexCount -> Rule(id, RuleType.REGEX, "^https?://[^/]*rx$i\\.[a-z]+/ads/[0-9]+")
+                i % 20 == 1 -> Rule(id, RuleType.URL, "https://${domain(i)}/api/v$i/")
+                i % 20 == 2 -> Rule(id, RuleType.KEYWORD, "/kw$i-${WORDS[i % WORDS.size]}")
+                i % 50 == 3 -> Rule(id, RuleType.DOMAIN, "ok.${domain(i - 3)}", allow = true)
+                else -> Rule(id, RuleType.DOMAIN, if (random.nextBoolean()) "*.${domain(i)}" else domain(i))
+            }
+        }
+    }
+
+    /** [count] request URLs of which about [hitRatio] match a block or allow rule. */
+    fun requests(rules: List<Rule>, count: Int, hitRatio: Double, seed: Int = 7): Array<String> {
+        val random = Random(seed)
+        return Array(count) { i ->
+            if (random.nextDouble() < hitRatio) {
+                hit(rules[random.nextInt(rules.size)], random)
+            } else {
+                "https://miss$i.example.${TLDS[i % TLDS.size]}/static/${random.nextInt(100_000)}.js?v=$i"
+            }
+        }
+    }
+
+    /** The host part of [url], as the hook extracts it before a Domain lookup. */
+    fun hostOf(url: String): String =
+        url.substringAfter("://").substringBefore('/').substringBefore('?').substringBefore(':').lowercase()
+
+    private fun hit(rule: Rule, random: Random): String = when (rule.type) {
+        RuleType.URL -> "${rule.value}items?page=${random.nextInt(100)}"
+        RuleType.DOMAIN -> "https://${rule.value.removePrefix("*.")}/p/${random.nextInt(1000)}.gif"
+        RuleType.KEYWORD -> "https://${domain(random.nextInt(1_000_000))}.example${rule.value}?r=${random.nextInt()}"
+        RuleType.REGEX -> "https://edge.rx${rule.id - 1}.net/ads/${random.nextInt(100_000)}"
+    }
+
+    private fun domain(i: Int): String = "${WORDS[i % WORDS.size]}$i.host${i % 97}.${TLDS[i % TLDS.size]}"
+}
@@ -0,0 +1,138 @@
+package com.close.hook.ads.rule
+
+/**
+ * Translates Adblock Plus / EasyList network filters into the engine's rule types.
+ *
+ * Filters are mapped onto the constant-time structures wherever the semantics allow:
+ * - `||host^` becomes a Domain rule covering the host and its subdomains.
+ * - `||host/path` becomes two keywords, `://host/path` and `.host/path`.
+ * - `|http://...` becomes a URL prefix rule.
+ * - A plain `/ads/banner` becomes a keyword.
+ *
+ * Everything else (`*` and `^` inside a filter, end anchors, `/regex/` filters)
+ * falls back to a Regex rule. Filters match ignoring case, as the keyword and URL
+ * matchers and Regex rules do; a `$match-case` filter always becomes a Regex rule
+ * that turns that off. Exception (`@@`) filters are compiled the same way into
+ * allow rules.
+ *
+ * The hook only sees the request URL. Options that depend on other context, such
+ * as `domain=`, `third-party` or resource types like `script`, cannot be honored,
+ * so filters carrying them are skipped rather than applied more broadly than their
+ * authors intended. So are `important` filters, since rules have no precedence over
+ * exceptions, and cosmetic filters. Only `match-case` and `all`, which names every
+ * resource type, are understood.
+ */
+object AbpCompiler {
+
+    private const val DOMAIN_ANCHOR = "^[a-z][a-z0-9+.-]*://([^/?#]*\\.)?"
+    private const val SEPARATOR = "(?:[^\\w.%-]|$)"
+
+    /** Returns the rules for one filter line, or an empty list if it is skipped. */
+    fun compile(line: String): List<Rule> {
+        val filter = line.trim()
+        if (filter.isEmpty() || filter.startsWith("!") || filter.startsWith("[")) return emptyList()
+        if (isCosmetic(filter)) return emptyList()
+        if (filter.startsWith("@@")) return compileFilter(filter.substring(2)).map { it.copy(allow = true) }
+        return compileFilter(filter)
+    }
+
+    private fun compileFilter(filter: String): List<Rule> {
+        if (filter.isEmpty()) return emptyList()
+        var pattern = filter
+        var matchCase = false
+        val optionsStart = optionsStart(filter)
+        if (optionsStart >= 0) {
+            for (option in filter.substring(optionsStart + 1).split(',')) {
+                val name = option.trim().lowercase()
+                when {
+                    name == "match-case" -> matchCase = true
+                    name != "all" -> return emptyList()
+                }
+            }
+            pattern = filter.substring(0, optionsStart)
+        }
+
+        if (pattern.length > 2 && pattern.startsWith("/") && pattern.endsWith("/")) {
+            return regex(pattern.substring(1, pattern.length - 1), matchCase)
+        }
+        return when {
+            pattern.startsWith("||") -> compileDomainAnchored(pattern.substring(2), matchCase)
+            pattern.startsWith("|") -> compileStartAnchored(pattern.substring(1), matchCase)
+            else -> compileUnanchored(pattern, matchCase)
+        }
+    }
+
+    private fun compileDomainAnchored(pattern: String, matchCase: Boolean): List<Rule> {
+        var hostEnd = 0
+        while (hostEnd < pattern.length && isHostChar(pattern[hostEnd])) hostEnd++
+        val host = pattern.substring(0, hostEnd).lowercase()
+        val rest = pattern.substring(hostEnd).removeSuffix("*")
+        if (host.isEmpty()) return regex(toRegex(pattern, DOMAIN_ANCHOR), matchCase)
+
+        return when {
+            rest.isEmpty() || rest == "^" || rest == "^|" -> listOf(Rule(0, RuleType.DOMAIN, "*.$host"))
+            !matchCase && !hasSpecial(rest) && (rest.startsWith("/") || rest.startsWith(":")) -> listOf(
+                Rule(0, RuleType.KEYWORD, "://$host$rest"),
+                Rule(0, RuleType.KEYWORD, ".$host$rest")
+            )
+            else -> regex(toRegex(pattern, DOMAIN_ANCHOR), matchCase)
+        }
+    }
+
+    private fun compileStartAnchored(pattern: String, matchCase: Boolean): List<Rule> {
+        val body = pattern.removeSuffix("*")
+        if (body.isEmpty()) return emptyList()
+        return if (!matchCase && !hasSpecial(body)) {
+            listOf(Rule(0, RuleType.URL, UrlPrefixMatcher.foldCase(body)))
+        } else {
+            regex(toRegex(body, "^"), matchCase)
+        }
+    }
+
+    private fun compileUnanchored(pattern: String, matchCase: Boolean): List<Rule> {
+        val body = pattern.trim('*')
+        if (body.isEmpty()) return emptyList()
+        return if (!matchCase && !hasSpecial(body)) {
+            listOf(Rule(0, RuleType.KEYWORD, body))
+        } else {
+            regex(toRegex(body, ""), matchCase)
+        }
+    }
+
+    private fun regex(pattern: String, matchCase: Boolean): List<Rule> {
+        val value = if (matchCase) "(?-i)$pattern" else pattern
+        return if (RegexMatcher.compile(value) != null) listOf(Rule(0, RuleType.REGEX, value)) else emptyList()
+    }
+
+    private fun toRegex(pattern: String, prefix: String): String {
+        val out = StringBuilder(prefix)
+        pattern.forEachIndexed { i, c ->
+            when {
+                c == '*' -> out.append(".*")
+                c == '^' -> out.append(SEPARATOR)
+                c == '|' && i == pattern.length - 1 -> out.append('$')
+                c.isLetterOrDigit() -> out.append(c)
+                else -> out.append('\\').append(c)
+            }
+        }
+        return out.toString()
+    }
+
+    private fun optionsStart(filter: String): Int {
+        val index = filter.lastIndexOf('$')
+        if (index <= 0 || index == filter.length - 1) return -1
+        // A trailing "$/" belongs to a regex filter, not to an option list.
+        if (filter.startsWith("/") && filter.endsWith("/")) return -1
+        return index
+    }
+
+    private fun isCosmetic(filter: String): Boolean =
+        filter.contains("##") || filter.contains("#@#") || filter.contains("#?#") ||
+            filter.contains("#$#") || filter.contains("#%#")
+
+    private fun isHostChar(c: Char): Boolean =
+        c in 'a'..'z' || c in 'A'..'Z' || c in '0'..'9' || c == '.' || c == '-' || c == '_'
+
+    private fun hasSpecial(pattern: String): Boolean =
+        pattern.any { it == '*' || it == '^' || it == '|' }
+}
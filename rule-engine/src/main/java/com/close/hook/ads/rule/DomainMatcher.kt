@@ -0,0 +1,225 @@
+package com.close.hook.ads.rule
+
+import java.nio.CharBuffer
+import java.nio.IntBuffer
+import java.util.ArrayDeque
+
+/**
+ * Domain rules stored in a trie keyed on reversed labels (`net -> doubleclick -> ad`).
+ *
+ * A plain rule such as `ad.doubleclick.net` only matches that exact host. A rule
+ * written as `*.doubleclick.net` or `.doubleclick.net` matches the domain itself
+ * and every subdomain. A `*` label anywhere else stands for exactly one label,
+ * e.g. `ads.*.example.com`. An allow rule covering the host overrides any block
+ * rule that does.
+ *
+ * Lookups hash each label of the host in place, so resolving a host costs one
+ * step per label and allocates nothing. [matchIndex] returns an index into the
+ * snapshot's [RuleTable].
+ */
+class DomainMatcher private constructor(
+    private val edgeStart: IntBuffer,
+    private val edgeHashes: IntBuffer,
+    private val edgeLabelStart: IntBuffer,
+    private val edgeLabelLength: IntBuffer,
+    private val edgeTargets: IntBuffer,
+    private val labelChars: CharBuffer,
+    private val wildcardChild: IntBuffer,
+    private val exactRule: IntBuffer,
+    private val subtreeRule: IntBuffer
+) {
+
+    fun matchIndex(host: CharSequence): Int {
+        if (host.isEmpty()) return -1
+        var end = host.length
+        if (host[end - 1] == '.') end--
+        if (end == 0) return -1
+        return find(host, end, 0)
+    }
+
+    // host[0, end) is still unmatched; end == -1 means every label has been consumed.
+    // The most specific block rule wins, unless an allow rule anywhere on the path matches.
+    private fun find(host: CharSequence, end: Int, node: Int): Int {
+        if (end < 0) return RuleTable.prefer(exactRule.get(node), subtreeRule.get(node))
+        var start = end
+        while (start > 0 && host[start - 1] != '.') start--
+        if (start == end) return -1
+
+        var result = -1
+        val child = child(node, host, start, end)
+        if (child >= 0) {
+            result = find(host, start - 1, child)
+            if (RuleTable.isAllow(result)) return result
+        }
+        val wildcard = wildcardChild.get(node)
+        if (wildcard >= 0) {
+            result = RuleTable.prefer(result, find(host, start - 1, wildcard))
+            if (RuleTable.isAllow(result)) return result
+        }
+        return RuleTable.prefer(result, subtreeRule.get(node))
+    }
+
+    private fun child(node: Int, host: CharSequence, start: Int, end: Int): Int {
+        val hash = labelHash(host, start, end)
+        val length = end - start
+        val first = edgeStart.get(node)
+        val last = edgeStart.get(node + 1)
+        var low = first
+        var high = last - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val midHash = edgeHashes.get(mid)
+            when {
+                midHash < hash -> low = mid + 1
+                midHash > hash -> high = mid - 1
+                else -> {
+                    var e = mid
+                    while (e > first && edgeHashes.get(e - 1) == hash) e--
+                    while (e < last && edgeHashes.get(e) == hash) {
+                        if (edgeLabelLength.get(e) == length && labelEquals(edgeLabelStart.get(e), host, start, length)) {
+                            return edgeTargets.get(e)
+                        }
+                        e++
+                    }
+                    return -1
+                }
+            }
+        }
+        return -1
+    }
+
+    private fun labelEquals(offset: Int, host: CharSequence, start: Int, length: Int): Boolean {
+        for (i in 0 until length) {
+            if (labelChars.get(offset + i) != host[start + i]) return false
+        }
+        return true
+    }
+
+    internal fun writeTo(out: RuleFile.SectionWriter) {
+        out.ints(edgeStart)
+        out.ints(edgeHashes)
+        out.ints(edgeLabelStart)
+        out.ints(edgeLabelLength)
+        out.ints(edgeTargets)
+        out.chars(labelChars)
+        out.ints(wildcardChild)
+        out.ints(exactRule)
+        out.ints(subtreeRule)
+    }
+
+    private class Node {
+        val children = HashMap<String, Node>(4)
+        var wildcard: Node? = null
+        var exactRule = -1
+        var subtreeRule = -1
+    }
+
+    companion object {
+
+        fun build(rules: Iterable<Rule>, table: RuleTable.Builder): DomainMatcher {
+            val root = Node()
+            rules.forEach { rule ->
+                val (labels, includeSubdomains) = parse(rule.value) ?: return@forEach
+                var node = root
+                for (i in labels.indices.reversed()) {
+                    val label = labels[i]
+                    node = if (label == "*") {
+                        node.wildcard ?: Node().also { node.wildcard = it }
+                    } else {
+                        node.children.getOrPut(label) { Node() }
+                    }
+                }
+                if (includeSubdomains) {
+                    if (replaces(node.subtreeRule, rule)) node.subtreeRule = table.add(rule)
+                } else if (replaces(node.exactRule, rule)) {
+                    node.exactRule = table.add(rule)
+                }
+            }
+            return flatten(root)
+        }
+
+        private fun replaces(current: Int, rule: Rule): Boolean =
+            current < 0 || (rule.allow && !RuleTable.isAllow(current))
+
+        /**
+         * Splits a Domain rule into its labels and whether it also covers subdomains,
+         * or returns null if the rule is not a valid domain pattern.
+         */
+        internal fun parse(ruleValue: String): Pair<List<String>, Boolean>? {
+            var value = ruleValue.trim().lowercase().removeSuffix(".")
+            val includeSubdomains = when {
+                value.startsWith("*.") -> { value = value.substring(2); true }
+                value.startsWith(".") -> { value = value.substring(1); true }
+                else -> false
+            }
+            val labels = value.split('.')
+            if (value.isEmpty() || labels.any { it.isEmpty() }) return null
+            return labels to includeSubdomains
+        }
+
+        internal fun readFrom(input: RuleFile.SectionReader): DomainMatcher = DomainMatcher(
+            input.ints(), input.ints(), input.ints(), input.ints(), input.ints(),
+            input.chars(), input.ints(), input.ints(), input.ints()
+        )
+
+        private fun flatten(root: Node): DomainMatcher {
+            val order = ArrayList<Node>()
+            val queue = ArrayDeque<Node>()
+            queue.add(root)
+            while (queue.isNotEmpty()) {
+                val node = queue.poll()
+                order.add(node)
+                queue.addAll(node.children.values)
+                node.wildcard?.let { queue.add(it) }
+            }
+            val indexOf = HashMap<Node, Int>(order.size * 2)
+            order.forEachIndexed { index, node -> indexOf[node] = index }
+
+            val nodeCount = order.size
+            val edgeCount = order.sumOf { it.children.size }
+            val edgeStart = IntArray(nodeCount + 1)
+            val edgeHashes = IntArray(edgeCount)
+            val edgeLabelStart = IntArray(edgeCount)
+            val edgeLabelLength = IntArray(edgeCount)
+            val edgeTargets = IntArray(edgeCount)
+            val labelChars = StringBuilder()
+            val wildcardChild = IntArray(nodeCount) { -1 }
+            val exactRule = IntArray(nodeCount)
+            val subtreeRule = IntArray(nodeCount)
+
+            var edge = 0
+            order.forEachIndexed { index, node ->
+                edgeStart[index] = edge
+                node.children.entries.sortedBy { it.key.hashCode() }.forEach { (label, child) ->
+                    edgeHashes[edge] = label.hashCode()
+                    edgeLabelStart[edge] = labelChars.length
+                    edgeLabelLength[edge] = label.length
+                    edgeTargets[edge] = indexOf.getValue(child)
+                    labelChars.append(label)
+                    edge++
+                }
+                node.wildcard?.let { wildcardChild[index] = indexOf.getValue(it) }
+                exactRule[index] = node.exactRule
+                subtreeRule[index] = node.subtreeRule
+            }
+            edgeStart[nodeCount] = edge
+
+            val chars = CharArray(labelChars.length)
+            labelChars.getChars(0, labelChars.length, chars, 0)
+            return DomainMatcher(
+                IntBuffer.wrap(edgeStart), IntBuffer.wrap(edgeHashes), IntBuffer.wrap(edgeLabelStart),
+                IntBuffer.wrap(edgeLabelLength), IntBuffer.wrap(edgeTargets), CharBuffer.wrap(chars),
+                IntBuffer.wrap(wildcardChild), IntBuffer.wrap(exactRule), IntBuffer.wrap(subtreeRule)
+            )
+        }
+
+        // Same function as String.hashCode(), evaluated over a range without a substring.
+        internal fun labelHash(text: CharSequence, start: Int, end: Int): Int {
+            var hash = 0
+            for (i in start until end) {
+                hash = 31 * hash + text[i].code
+            }
+            return hash
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.close.hook.ads.rule
+
+import java.nio.CharBuffer
+import java.nio.IntBuffer
+import java.util.ArrayDeque
+
+/**
+ * Aho-Corasick automaton over all KeyWord rules.
+ *
+ * The trie is flattened into sorted edge arrays, so a lookup walks the input
+ * once and never allocates. Output links are folded into [output] at build
+ * time, which lets [matchIndex] stop at the first keyword that ends anywhere
+ * in the input. Like URL rules, keywords match ignoring the case of ASCII
+ * letters; the trie holds them folded and the input is folded as it is read.
+ * An allow keyword wins over a block keyword ending at the same
+ * state; when the caller says the trie holds allow keywords, a block match only
+ * ends the scan once the whole input has been seen. [matchIndex] returns an
+ * index into the snapshot's [RuleTable].
+ */
+class KeywordMatcher private constructor(
+    private val edgeStart: IntBuffer,
+    private val edgeChars: CharBuffer,
+    private val edgeTargets: IntBuffer,
+    private val fail: IntBuffer,
+    private val output: IntBuffer
+) {
+
+    fun matchIndex(text: CharSequence, hasAllow: Boolean = false): Int {
+        if (edgeStart.get(1) == 0) return -1
+        var first = -1
+        var state = 0
+        for (i in 0 until text.length) {
+            val c = UrlPrefixMatcher.foldCase(text[i])
+            var next = transition(state, c)
+            while (next < 0 && state != 0) {
+                state = fail.get(state)
+                next = transition(state, c)
+            }
+            state = if (next < 0) 0 else next
+            val out = output.get(state)
+            if (out >= 0) {
+                if (!hasAllow || RuleTable.isAllow(out)) return out
+                if (first < 0) first = out
+            }
+        }
+        return first
+    }
+
+    private fun transition(state: Int, c: Char): Int {
+        var low = edgeStart.get(state)
+        var high = edgeStart.get(state + 1) - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val midChar = edgeChars.get(mid)
+            when {
+                midChar < c -> low = mid + 1
+                midChar > c -> high = mid - 1
+                else -> return edgeTargets.get(mid)
+            }
+        }
+        return -1
+    }
+
+    internal fun writeTo(out: RuleFile.SectionWriter) {
+        out.ints(edgeStart)
+        out.chars(edgeChars)
+        out.ints(edgeTargets)
+        out.ints(fail)
+        out.ints(output)
+    }
+
+    /**
+     * Mutable keyword trie. Rules can be added and removed one at a time;
+     * [build] only has to recompute failure links and re-flatten the trie.
+     */
+    class Builder {
+
+        private class Node {
+            val children = HashMap<Char, Node>(4)
+            val rules = ArrayList<Rule>(1)
+        }
+
+        private val root = Node()
+
+        fun add(rule: Rule): Builder {
+            if (rule.value.isEmpty()) return this
+            var node = root
+            for (c in rule.value) {
+                node = node.children.getOrPut(UrlPrefixMatcher.foldCase(c)) { Node() }
+            }
+            if (node.rules.none { it.id == rule.id }) {
+                node.rules.add(rule)
+            }
+            return this
+        }
+
+        fun addAll(rules: Iterable<Rule>): Builder {
+            rules.forEach { add(it) }
+            return this
+        }
+
+        fun remove(rule: Rule): Boolean = remove(root, rule, 0)
+
+        private fun remove(node: Node, rule: Rule, depth: Int): Boolean {
+            if (depth == rule.value.length) {
+                return node.rules.removeAll { it.id == rule.id }
+            }
+            val c = UrlPrefixMatcher.foldCase(rule.value[depth])
+            val child = node.children[c] ?: return false
+            val removed = remove(child, rule, depth + 1)
+            if (removed && child.rules.isEmpty() && child.children.isEmpty()) {
+                node.children.remove(c)
+            }
+            return removed
+        }
+
+        fun build(table: RuleTable.Builder): KeywordMatcher {
+            val order = ArrayList<Node>()
+            val queue = ArrayDeque<Node>()
+            queue.add(root)
+            while (queue.isNotEmpty()) {
+                val node = queue.poll()
+                order.add(node)
+                node.children.keys.sorted().forEach { queue.add(node.children.getValue(it)) }
+            }
+
+            val stateOf = HashMap<Node, Int>(order.size * 2)
+            order.forEachIndexed { index, node -> stateOf[node] = index }
+
+            val stateCount = order.size
+            val edgeStart = IntArray(stateCount + 1)
+            val edgeChars = CharArray(stateCount - 1)
+            val edgeTargets = IntArray(stateCount - 1)
+            val terminal = IntArray(stateCount) { -1 }
+
+            var edge = 0
+            order.forEachIndexed { state, node ->
+                edgeStart[state] = edge
+                node.children.keys.sorted().forEach { c ->
+                    edgeChars[edge] = c
+                    edgeTargets[edge] = stateOf.getValue(node.children.getValue(c))
+                    edge++
+                }
+                (node.rules.firstOrNull { it.allow } ?: node.rules.firstOrNull())?.let { terminal[state] = table.add(it) }
+            }
+            edgeStart[stateCount] = edge
+
+            val fail = IntArray(stateCount)
+            val output = IntArray(stateCount) { -1 }
+            val matcher = KeywordMatcher(
+                IntBuffer.wrap(edgeStart), CharBuffer.wrap(edgeChars), IntBuffer.wrap(edgeTargets),
+                IntBuffer.wrap(fail), IntBuffer.wrap(output)
+            )
+
+            // BFS order guarantees that fail[] of every shallower state is final here.
+            for (state in 0 until stateCount) {
+                for (e in edgeStart[state] until edgeStart[state + 1]) {
+                    val target = edgeTargets[e]
+                    if (state != 0) {
+                        var f = fail[state]
+                        var next = matcher.transition(f, edgeChars[e])
+                        while (next < 0 && f != 0) {
+                            f = fail[f]
+                            next = matcher.transition(f, edgeChars[e])
+                        }
+                        fail[target] = if (next < 0 || next == target) 0 else next
+                    }
+                }
+                output[state] = RuleTable.prefer(terminal[state], output[fail[state]])
+            }
+            return matcher
+        }
+    }
+
+    companion object {
+        internal fun readFrom(input: RuleFile.SectionReader): KeywordMatcher =
+            KeywordMatcher(input.ints(), input.chars(), input.ints(), input.ints(), input.ints())
+    }
+}
@@ -0,0 +1,350 @@
+package com.close.hook.ads.rule
+
+import java.util.Arrays
+
+/**
+ * All supported Regex rules compiled into one Thompson NFA and run as a lazily built
+ * DFA, so a request is scanned once in time linear in its length no matter how many
+ * patterns there are.
+ *
+ * A DFA state is the set of live NFA states plus a ceiling: the lowest pattern index
+ * that has matched so far (or the pattern count). Threads of patterns at or above
+ * the ceiling are dropped, which keeps the first-rule-wins result of evaluating the
+ * patterns in order and lets the scan stop as soon as nothing lower can still match.
+ *
+ * DFA states are built on demand into a per-thread cache that is flushed when it
+ * reaches [MAX_STATES], so memory stays bounded on pathological inputs. A cache only
+ * refers to the compiled [Program], never to the automaton that owns the ThreadLocal,
+ * so an automaton dropped with its snapshot can be collected along with its caches.
+ */
+internal class RegexAutomaton private constructor(private val program: Program) {
+
+    private val patternCount = program.patternCount
+    private val boundaries = program.boundaries
+    private val asciiClasses = IntArray(128) { classOf(it) }
+
+    private val caches = ThreadLocal.withInitial { Cache(program) }
+
+    /** Index of the first pattern, in rule order, found anywhere in [value]; -1 if none. */
+    fun firstMatch(value: CharSequence): Int {
+        if (patternCount == 0) return -1
+        if (value.isEmpty()) return result(program.emptyInputCeiling)
+
+        val cache = caches.get()!!
+        var state = cache.initial()
+        for (i in 0 until value.length) {
+            if (state.done) return result(state.ceiling)
+            val c = value[i].code
+            val cls = if (c < 128) asciiClasses[c] else classOf(c)
+            val next = state.next[cls]
+            state = if (next >= 0) cache.states[next] else cache.step(state, cls)
+        }
+        return result(cache.endCeiling(state))
+    }
+
+    private fun result(ceiling: Int) = if (ceiling < patternCount) ceiling else -1
+
+    private fun classOf(c: Int): Int {
+        val i = Arrays.binarySearch(boundaries, c)
+        return if (i >= 0) i else -i - 2
+    }
+
+    // The compiled NFA and the tables derived from it, shared read-only by every cache.
+    private class Program(
+        val patternCount: Int,
+        val op: IntArray,
+        val arg: IntArray,
+        val out1: IntArray,
+        val out2: IntArray,
+        val nodePattern: IntArray,
+        val starts: IntArray,
+        val boundaries: IntArray,
+        val members: Array<BooleanArray>
+    ) {
+        val classCount = boundaries.size
+
+        // The ceiling an empty input ends with, which needs both anchors at once.
+        val emptyInputCeiling: Int
+
+        // canRestart[c]: some pattern below c still has threads after a fresh start.
+        val canRestart = BooleanArray(patternCount + 1)
+
+        init {
+            val scratch = Scratch(this)
+            scratch.begin(patternCount)
+            scratch.restart(atStart = true, atEnd = true)
+            emptyInputCeiling = scratch.ceiling
+
+            for (p in 0 until patternCount) {
+                scratch.begin(patternCount)
+                if (starts[p] != NO_START) scratch.closure(starts[p], atStart = false, atEnd = false)
+                canRestart[p + 1] = canRestart[p] || scratch.size > 0 || scratch.ceiling < patternCount
+            }
+        }
+    }
+
+    private class State(val nodes: IntArray, val ceiling: Int, val done: Boolean, classCount: Int) {
+        val next = IntArray(classCount).also { it.fill(-1) }
+        var endCeiling = UNKNOWN
+    }
+
+    private class Key(val nodes: IntArray, val ceiling: Int) {
+        override fun equals(other: Any?) =
+            other is Key && other.ceiling == ceiling && other.nodes.contentEquals(nodes)
+
+        override fun hashCode() = nodes.contentHashCode() * 31 + ceiling
+    }
+
+    // Epsilon closure into a de-duplicated node list, tracking the lowest accepted pattern.
+    private class Scratch(private val program: Program) {
+        val nodes = IntArray(program.op.size)
+        var size = 0
+        var ceiling = 0
+        private val stack = IntArray(program.op.size * 2 + 1)
+        private val marks = IntArray(program.op.size)
+        private var generation = 0
+
+        fun begin(ceiling: Int) {
+            this.ceiling = ceiling
+            size = 0
+            if (++generation == Int.MAX_VALUE) {
+                marks.fill(0)
+                generation = 1
+            }
+        }
+
+        // Starts every pattern below the current ceiling at this position.
+        fun restart(atStart: Boolean, atEnd: Boolean) {
+            val starts = program.starts
+            for (p in 0 until ceiling) {
+                if (starts[p] != NO_START) closure(starts[p], atStart, atEnd)
+            }
+        }
+
+        fun closure(start: Int, atStart: Boolean, atEnd: Boolean) {
+            val op = program.op
+            val nodePattern = program.nodePattern
+            var top = 0
+            stack[top++] = start
+            while (top > 0) {
+                val n = stack[--top]
+                if (marks[n] == generation || nodePattern[n] >= ceiling) continue
+                marks[n] = generation
+                when (op[n]) {
+                    OP_CHARS -> nodes[size++] = n
+                    OP_SPLIT -> {
+                        stack[top++] = program.out2[n]
+                        stack[top++] = program.out1[n]
+                    }
+                    OP_BOL -> if (atStart) stack[top++] = program.out1[n]
+                    OP_EOL -> if (atEnd) stack[top++] = program.out1[n] else nodes[size++] = n
+                    OP_MATCH -> if (program.arg[n] < ceiling) ceiling = program.arg[n]
+                }
+            }
+        }
+
+        fun toState(): State {
+            var kept = 0
+            for (i in 0 until size) {
+                if (program.nodePattern[nodes[i]] < ceiling) nodes[kept++] = nodes[i]
+            }
+            val sorted = nodes.copyOf(kept).also { it.sort() }
+            val done = ceiling == 0 || (kept == 0 && !program.canRestart[ceiling])
+            return State(sorted, ceiling, done, program.classCount)
+        }
+    }
+
+    private class Cache(private val program: Program) {
+        val states = ArrayList<State>()
+        private val index = HashMap<Key, Int>()
+        private val scratch = Scratch(program)
+        private var initialState = -1
+
+        fun initial(): State {
+            if (initialState < 0) {
+                scratch.begin(program.patternCount)
+                scratch.restart(atStart = true, atEnd = false)
+                initialState = intern(scratch.toState())
+            }
+            return states[initialState]
+        }
+
+        fun step(from: State, cls: Int): State {
+            val source = if (states.size >= MAX_STATES) {
+                states.clear()
+                index.clear()
+                initialState = -1
+                states[intern(State(from.nodes, from.ceiling, from.done, program.classCount))]
+            } else {
+                from
+            }
+
+            scratch.begin(source.ceiling)
+            for (n in source.nodes) {
+                if (program.op[n] == OP_CHARS && program.members[program.arg[n]][cls]) {
+                    scratch.closure(program.out1[n], atStart = false, atEnd = false)
+                }
+            }
+            scratch.restart(atStart = false, atEnd = false)
+
+            val target = intern(scratch.toState())
+            source.next[cls] = target
+            return states[target]
+        }
+
+        fun endCeiling(state: State): Int {
+            if (state.endCeiling == UNKNOWN) {
+                scratch.begin(state.ceiling)
+                for (n in state.nodes) {
+                    if (program.op[n] == OP_EOL) scratch.closure(program.out1[n], atStart = false, atEnd = true)
+                }
+                state.endCeiling = scratch.ceiling
+            }
+            return state.endCeiling
+        }
+
+        private fun intern(state: State): Int {
+            val key = Key(state.nodes, state.ceiling)
+            return index.getOrPut(key) {
+                states.add(state)
+                states.size - 1
+            }
+        }
+    }
+
+    private class Builder {
+        var op = IntArray(64)
+        var arg = IntArray(64)
+        var out1 = IntArray(64)
+        var out2 = IntArray(64)
+        var nodePattern = IntArray(64)
+        var size = 0
+        var limit = 0
+        var pattern = 0
+        val charsets = ArrayList<IntArray>()
+        private val charsetIds = HashMap<List<Int>, Int>()
+
+        fun add(code: Int, argument: Int, next1: Int, next2: Int = -1): Int {
+            if (size >= limit) throw RegexParser.Unsupported()
+            if (size == op.size) {
+                val capacity = size * 2
+                op = op.copyOf(capacity)
+                arg = arg.copyOf(capacity)
+                out1 = out1.copyOf(capacity)
+                out2 = out2.copyOf(capacity)
+                nodePattern = nodePattern.copyOf(capacity)
+            }
+            op[size] = code
+            arg[size] = argument
+            out1[size] = next1
+            out2[size] = next2
+            nodePattern[size] = pattern
+            return size++
+        }
+
+        fun charset(ranges: IntArray): Int =
+            charsetIds.getOrPut(ranges.toList()) {
+                charsets.add(ranges)
+                charsets.size - 1
+            }
+
+        // Compiles [node] so that it continues at [next], returning its entry node.
+        fun compile(node: RegexParser.Node, next: Int): Int = when (node) {
+            is RegexParser.Node.Chars -> add(OP_CHARS, charset(node.ranges), next)
+            is RegexParser.Node.Concat -> node.items.foldRight(next) { item, entry -> compile(item, entry) }
+            is RegexParser.Node.Alt -> node.options
+                .map { compile(it, next) }
+                .reduceRight { entry, rest -> add(OP_SPLIT, 0, entry, rest) }
+            is RegexParser.Node.Repeat -> compileRepeat(node, next)
+            RegexParser.Node.Empty -> next
+            RegexParser.Node.Bol -> add(OP_BOL, 0, next)
+            RegexParser.Node.Eol -> add(OP_EOL, 0, next)
+        }
+
+        private fun compileRepeat(node: RegexParser.Node.Repeat, next: Int): Int {
+            var entry: Int
+            if (node.max == RegexParser.UNBOUNDED) {
+                entry = add(OP_SPLIT, 0, -1, next)
+                // Compile first: growing the arrays replaces out1.
+                val body = compile(node.node, entry)
+                out1[entry] = body
+            } else {
+                entry = next
+                repeat(node.max - node.min) { entry = add(OP_SPLIT, 0, compile(node.node, entry), next) }
+            }
+            repeat(node.min) { entry = compile(node.node, entry) }
+            return entry
+        }
+    }
+
+    companion object {
+        private const val OP_CHARS = 0
+        private const val OP_SPLIT = 1
+        private const val OP_BOL = 2
+        private const val OP_EOL = 3
+        private const val OP_MATCH = 4
+
+        private const val UNKNOWN = -1
+        private const val NO_START = -1
+        private const val MAX_STATES = 2048
+        private const val MAX_NODES_PER_PATTERN = 4096
+
+        /**
+         * Compiles [patterns] in order; a null entry never matches. Patterns that
+         * [RegexParser] cannot handle, or whose NFA would be too large, never match
+         * either and are reported through [unsupported] so the caller can evaluate
+         * them some other way.
+         */
+        fun compile(patterns: List<String?>, unsupported: (Int) -> Unit): RegexAutomaton {
+            val builder = Builder()
+            val starts = IntArray(patterns.size)
+            for ((p, pattern) in patterns.withIndex()) {
+                if (pattern == null) {
+                    starts[p] = NO_START
+                    continue
+                }
+                val mark = builder.size
+                builder.pattern = p
+                builder.limit = mark + MAX_NODES_PER_PATTERN
+                starts[p] = try {
+                    builder.compile(RegexParser.parse(pattern), builder.add(OP_MATCH, p, -1))
+                } catch (e: RegexParser.Unsupported) {
+                    builder.size = mark
+                    unsupported(p)
+                    NO_START
+                }
+            }
+            return finish(patterns.size, builder, starts)
+        }
+
+        private fun finish(patternCount: Int, builder: Builder, starts: IntArray): RegexAutomaton {
+            val points = sortedSetOf(0)
+            for (ranges in builder.charsets) {
+                for (i in ranges.indices step 2) {
+                    points.add(ranges[i])
+                    if (ranges[i + 1] < RegexParser.MAX_CHAR) points.add(ranges[i + 1] + 1)
+                }
+            }
+            val boundaries = points.toIntArray()
+            val members = Array(builder.charsets.size) { id ->
+                val ranges = builder.charsets[id]
+                BooleanArray(boundaries.size) { cls ->
+                    val c = boundaries[cls]
+                    (ranges.indices step 2).any { c >= ranges[it] && c <= ranges[it + 1] }
+                }
+            }
+            val size = builder.size
+            return RegexAutomaton(Program(
+                patternCount,
+                builder.op.copyOf(size),
+                builder.arg.copyOf(size),
+                builder.out1.copyOf(size),
+                builder.out2.copyOf(size),
+                builder.nodePattern.copyOf(size),
+                starts,
+                boundaries,
+                members
+            ))
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.close.hook.ads.rule
+
+import java.nio.IntBuffer
+import java.util.regex.Pattern
+import java.util.regex.PatternSyntaxException
+
+/**
+ * Residual Regex rules that no prefix, domain or keyword structure can express,
+ * with `find()` semantics: the first rule, in order, whose pattern occurs anywhere
+ * in the value wins. Patterns are case-insensitive unless they turn that off
+ * inline with `(?-i)`, matching Adblock Plus defaults.
+ *
+ * Patterns are compiled together into one [RegexAutomaton], so a request is
+ * scanned once however many rules there are. The few that need backtracking
+ * features are kept as `java.util.regex` patterns and only tried while no earlier
+ * rule has matched.
+ *
+ * Allow rules are ordered ahead of block rules, so the first match is an allow
+ * rule whenever any allow rule matches, at no extra cost per request.
+ *
+ * Only the rule indexes are stored in a [RuleFile]; the patterns themselves are
+ * compiled from the [RuleTable] when the matcher is created. Invalid patterns
+ * never match.
+ */
+class RegexMatcher private constructor(
+    private val ruleIndexes: IntBuffer,
+    patterns: List<String>
+) {
+
+    private val fallbackOrder: IntArray
+    private val fallbacks = arrayOfNulls<Pattern>(patterns.size)
+    private val automaton: RegexAutomaton
+
+    init {
+        val valid = patterns.map { pattern -> pattern.takeIf { compile(it) != null } }
+        val unsupported = ArrayList<Int>()
+        automaton = RegexAutomaton.compile(valid) { unsupported.add(it) }
+        for (i in unsupported) fallbacks[i] = compile(patterns[i])
+        fallbackOrder = unsupported.toIntArray()
+    }
+
+    fun matchIndex(value: CharSequence): Int {
+        var first = automaton.firstMatch(value)
+        for (i in fallbackOrder) {
+            if (first in 0 until i) break
+            if (fallbacks[i]!!.matcher(value).find()) {
+                first = i
+                break
+            }
+        }
+        return if (first >= 0) ruleIndexes.get(first) else -1
+    }
+
+    internal fun writeTo(out: RuleFile.SectionWriter) {
+        out.ints(ruleIndexes)
+    }
+
+    companion object {
+
+        fun build(rules: List<Rule>, table: RuleTable.Builder): RegexMatcher {
+            val ordered = rules.sortedByDescending { it.allow }
+            val indexes = IntArray(ordered.size) { i -> table.add(ordered[i]) }
+            return RegexMatcher(IntBuffer.wrap(indexes), ordered.map { it.value })
+        }
+
+        internal fun readFrom(input: RuleFile.SectionReader, table: RuleTable): RegexMatcher {
+            val indexes = input.ints()
+            return RegexMatcher(indexes, List(indexes.capacity()) { i -> table.ruleAt(indexes.get(i)).value })
+        }
+
+        fun compile(pattern: String): Pattern? = try {
+            Pattern.compile(pattern, Pattern.CASE_INSENSITIVE)
+        } catch (e: PatternSyntaxException) {
+            null
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.close.hook.ads.rule
+
+/**
+ * Parses the regular subset of `java.util.regex` syntax that [RegexAutomaton] can run:
+ * literals, escapes, `.`, character classes, groups, alternation, greedy or lazy
+ * quantifiers and the `^` / `$` input anchors, plus a leading `(?i)` or `(?-i)`.
+ *
+ * Anything that needs backtracking or context (backreferences, lookaround, `\b`,
+ * possessive quantifiers, nested class operators, inline flags elsewhere) throws
+ * [Unsupported], and the caller falls back to `java.util.regex` for that pattern.
+ * Patterns are assumed to have already compiled with `Pattern.compile`.
+ */
+internal class RegexParser private constructor(private val pattern: String) {
+
+    sealed class Node {
+        // Sorted, disjoint, inclusive [lo, hi] char pairs.
+        class Chars(val ranges: IntArray) : Node()
+        class Concat(val items: List<Node>) : Node()
+        class Alt(val options: List<Node>) : Node()
+        class Repeat(val node: Node, val min: Int, val max: Int) : Node()
+        object Empty : Node()
+        object Bol : Node()
+        object Eol : Node()
+    }
+
+    class Unsupported : RuntimeException(null, null, false, false)
+
+    private var pos = 0
+    private var caseInsensitive = true
+
+    private fun parse(): Node {
+        parseLeadingFlags()
+        val node = parseAlt()
+        if (pos != pattern.length) throw Unsupported()
+        return node
+    }
+
+    private fun parseLeadingFlags() {
+        while (pattern.startsWith("(?", pos)) {
+            val close = pattern.indexOf(')', pos)
+            if (close < 0) return
+            val flags = pattern.substring(pos + 2, close)
+            when (flags) {
+                "i" -> caseInsensitive = true
+                "-i" -> caseInsensitive = false
+                else -> return
+            }
+            pos = close + 1
+        }
+    }
+
+    private fun parseAlt(): Node {
+        val options = arrayListOf(parseConcat())
+        while (peek() == '|') {
+            pos++
+            options.add(parseConcat())
+        }
+        return if (options.size == 1) options[0] else Node.Alt(options)
+    }
+
+    private fun parseConcat(): Node {
+        val items = ArrayList<Node>()
+        while (pos < pattern.length && peek() != '|' && peek() != ')') {
+            items.add(parseQuantified(parseAtom()))
+        }
+        return when (items.size) {
+            0 -> Node.Empty
+            1 -> items[0]
+            else -> Node.Concat(items)
+        }
+    }
+
+    private fun parseQuantified(atom: Node): Node {
+        var node = atom
+        while (pos < pattern.length) {
+            val (min, max) = when (peek()) {
+                '*' -> skip(0 to UNBOUNDED)
+                '+' -> skip(1 to UNBOUNDED)
+                '?' -> skip(0 to 1)
+                '{' -> parseBounds()
+                else -> return node
+            }
+            when (peek()) {
+                '?' -> pos++
+                '+' -> throw Unsupported()
+            }
+            node = Node.Repeat(node, min, max)
+        }
+        return node
+    }
+
+    // Consumes the quantifier, including the closing brace of a bounded one.
+    private fun parseBounds(): Pair<Int, Int> {
+        val close = pattern.indexOf('}', pos)
+        if (close < 0) throw Unsupported()
+        val body = pattern.substring(pos + 1, close)
+        val min = body.substringBefore(',').toIntOrNull() ?: throw Unsupported()
+        val max = when {
+            ',' !in body -> min
+            body.endsWith(",") -> UNBOUNDED
+            else -> body.substringAfter(',').toIntOrNull() ?: throw Unsupported()
+        }
+        if (max != UNBOUNDED && max < min) throw Unsupported()
+        pos = close + 1
+        return min to max
+    }
+
+    private fun parseAtom(): Node {
+        val c = pattern[pos++]
+        return when (c) {
+            '(' -> parseGroup()
+            '[' -> chars(parseClass())
+            '.' -> Node.Chars(DOT)
+            '^' -> Node.Bol
+            '$' -> Node.Eol
+            '\\' -> chars(parseEscape())
+            '*', '+', '?', '{', ')' -> throw Unsupported()
+            else -> chars(intArrayOf(c.code, c.code))
+        }
+    }
+
+    private fun parseGroup(): Node {
+        if (peek() == '?') {
+            when {
+                pattern.startsWith("?:", pos) -> pos += 2
+                pattern.startsWith("?<", pos) && pattern.getOrNull(pos + 2)?.isLetter() == true -> {
+                    pos = pattern.indexOf('>', pos) + 1
+                    if (pos == 0) throw Unsupported()
+                }
+                else -> throw Unsupported()
+            }
+        }
+        val node = parseAlt()
+        if (peek() != ')') throw Unsupported()
+        pos++
+        return node
+    }
+
+    private fun parseClass(): IntArray {
+        val negate = peek() == '^'
+        if (negate) pos++
+        if (peek() == ']') throw Unsupported()
+
+        var ranges = IntArray(0)
+        while (true) {
+            if (pos >= pattern.length) throw Unsupported()
+            val c = pattern[pos++]
+            if (c == ']') break
+            if (c == '[' || (c == '&' && peek() == '&')) throw Unsupported()
+
+            val lo: Int
+            if (c == '\\') {
+                val escaped = parseEscape()
+                if (!isSingle(escaped)) {
+                    ranges = union(ranges, escaped)
+                    continue
+                }
+                lo = escaped[0]
+            } else {
+                lo = c.code
+            }
+
+            if (peek() == '-' && pattern.getOrNull(pos + 1)?.let { it != ']' } == true) {
+                pos++
+                val h = pattern[pos++]
+                val hi = when (h) {
+                    '\\' -> parseEscape().also { if (!isSingle(it)) throw Unsupported() }[0]
+                    '[' -> throw Unsupported()
+                    else -> h.code
+                }
+                if (hi < lo) throw Unsupported()
+                ranges = union(ranges, intArrayOf(lo, hi))
+            } else {
+                ranges = union(ranges, intArrayOf(lo, lo))
+            }
+        }
+        if (caseInsensitive) ranges = foldCase(ranges)
+        return if (negate) complement(ranges) else ranges
+    }
+
+    private fun parseEscape(): IntArray {
+        if (pos >= pattern.length) throw Unsupported()
+        val c = pattern[pos++]
+        return when (c) {
+            'd' -> DIGIT
+            'D' -> complement(DIGIT)
+            'w' -> WORD
+            'W' -> complement(WORD)
+            's' -> SPACE
+            'S' -> complement(SPACE)
+            't' -> single('\t'.code)
+            'n' -> single('\n'.code)
+            'r' -> single('\r'.code)
+            'f' -> single(0x0C)
+            'a' -> single(0x07)
+            'e' -> single(0x1B)
+            'x' -> single(parseHex(2))
+            'u' -> single(parseHex(4))
+            else -> if (c.isLetterOrDigit()) throw Unsupported() else single(c.code)
+        }
+    }
+
+    private fun parseHex(digits: Int): Int {
+        if (peek() == '{' || pos + digits > pattern.length) throw Unsupported()
+        val value = pattern.substring(pos, pos + digits).toIntOrNull(16) ?: throw Unsupported()
+        pos += digits
+        return value
+    }
+
+    private fun chars(ranges: IntArray): Node =
+        Node.Chars(if (caseInsensitive && isSingle(ranges)) foldCase(ranges) else ranges)
+
+    private fun peek(): Char? = pattern.getOrNull(pos)
+
+    private fun <T> skip(value: T): T {
+        pos++
+        return value
+    }
+
+    companion object {
+        const val UNBOUNDED = -1
+        const val MAX_CHAR = 0xFFFF
+
+        private val DIGIT = intArrayOf('0'.code, '9'.code)
+        private val WORD = intArrayOf('0'.code, '9'.code, 'A'.code, 'Z'.code, '_'.code, '_'.code, 'a'.code, 'z'.code)
+        private val SPACE = intArrayOf(0x09, 0x0D, ' '.code, ' '.code)
+
+        // Everything but the line terminators, as `.` without DOTALL.
+        private val DOT = complement(
+            intArrayOf(0x0A, 0x0A, 0x0D, 0x0D, 0x85, 0x85, 0x2028, 0x2029)
+        )
+
+        fun parse(pattern: String): Node = RegexParser(pattern).parse()
+
+        private fun single(c: Int) = intArrayOf(c, c)
+
+        private fun isSingle(ranges: IntArray) = ranges.size == 2 && ranges[0] == ranges[1]
+
+        // CASE_INSENSITIVE without UNICODE_CASE only folds US-ASCII letters.
+        private fun foldCase(ranges: IntArray): IntArray {
+            var folded = ranges
+            for (letter in 'a'..'z') {
+                val lower = letter.code
+                val upper = letter.uppercaseChar().code
+                if (contains(ranges, lower) || contains(ranges, upper)) {
+                    folded = union(folded, intArrayOf(lower, lower, upper, upper))
+                }
+            }
+            return folded
+        }
+
+        private fun contains(ranges: IntArray, c: Int): Boolean {
+            for (i in ranges.indices step 2) {
+                if (c >= ranges[i] && c <= ranges[i + 1]) return true
+            }
+            return false
+        }
+
+        fun union(a: IntArray, b: IntArray): IntArray {
+            val pairs = (a.indices step 2).map { a[it] to a[it + 1] } + (b.indices step 2).map { b[it] to b[it + 1] }
+            val out = ArrayList<Int>()
+            for ((lo, hi) in pairs.sortedBy { it.first }) {
+                if (out.isNotEmpty() && lo <= out[out.size - 1] + 1) {
+                    if (hi > out[out.size - 1]) out[out.size - 1] = hi
+                } else {
+                    out.add(lo)
+                    out.add(hi)
+                }
+            }
+            return out.toIntArray()
+        }
+
+        fun complement(ranges: IntArray): IntArray {
+            val out = ArrayList<Int>()
+            var next = 0
+            for (i in ranges.indices step 2) {
+                if (ranges[i] > next) {
+                    out.add(next)
+                    out.add(ranges[i] - 1)
+                }
+                next = ranges[i + 1] + 1
+            }
+            if (next <= MAX_CHAR) {
+                out.add(next)
+                out.add(MAX_CHAR)
+            }
+            return out.toIntArray()
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.close.hook.ads.rule
+
+/**
+ * A single blocking rule. [scope] is the package the rule is limited to, or empty
+ * for a rule that applies to every app; snapshots are compiled per scope and do
+ * not store it themselves.
+ *
+ * An [allow] rule is an exception: a request it matches is never blocked, whatever
+ * block rules match it too.
+ */
+data class Rule(
+    val id: Long,
+    val type: RuleType,
+    val value: String,
+    val scope: String = "",
+    val allow: Boolean = false
+)
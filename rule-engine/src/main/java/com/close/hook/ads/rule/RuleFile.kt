@@ -0,0 +1,133 @@
+package com.close.hook.ads.rule
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.CharBuffer
+import java.nio.IntBuffer
+import java.nio.LongBuffer
+
+/**
+ * Versioned, read-only binary layout of a [RuleSnapshot].
+ *
+ * The module app writes one file per rule version and scope (see [fileName]), and
+ * hooked processes map the global file plus the one for their own package
+ * read-only, so every process shares the same page cache instead of holding
+ * its own copy of the rules. The header is followed by 8-byte aligned
+ * sections of little-endian primitives that the matchers read in place.
+ */
+object RuleFile {
+
+    private const val MAGIC = 0x4C524341 // "ACRL"
+    const val FORMAT_VERSION = 7
+
+    private const val HEADER_SIZE = 24
+    private const val KIND_INT = 1
+    private const val KIND_CHAR = 2
+    private const val KIND_LONG = 3
+
+    const val FILE_PREFIX = "url_rules_"
+    private const val FILE_SUFFIX = ".bin"
+    private const val SCOPE_SEPARATOR = '@'
+
+    /** `url_rules_<version>.bin` for global rules, `url_rules_<version>@<package>.bin` for a scope. */
+    fun fileName(version: Long, scope: String = ""): String =
+        if (scope.isEmpty()) "$FILE_PREFIX$version$FILE_SUFFIX"
+        else "$FILE_PREFIX$version$SCOPE_SEPARATOR$scope$FILE_SUFFIX"
+
+    fun versionOf(fileName: String): Long? =
+        body(fileName)?.substringBefore(SCOPE_SEPARATOR)?.toLongOrNull()
+
+    fun scopeOf(fileName: String): String? =
+        if (versionOf(fileName) != null) body(fileName)?.substringAfter(SCOPE_SEPARATOR, "") else null
+
+    private fun body(fileName: String): String? =
+        if (fileName.startsWith(FILE_PREFIX) && fileName.endsWith(FILE_SUFFIX)) {
+            fileName.substring(FILE_PREFIX.length, fileName.length - FILE_SUFFIX.length)
+        } else null
+
+    fun write(snapshot: RuleSnapshot): ByteBuffer {
+        val out = SectionWriter()
+        snapshot.writeTo(out)
+        return out.toByteBuffer(snapshot.version)
+    }
+
+    /**
+     * Wraps [buffer] without copying it. Throws [IllegalArgumentException] if the
+     * buffer is not a complete rule file of the supported format.
+     */
+    fun read(buffer: ByteBuffer): RuleSnapshot {
+        val data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+        require(data.remaining() >= HEADER_SIZE) { "Rule file truncated" }
+        val base = data.position()
+        require(data.getInt(base) == MAGIC) { "Not a rule file" }
+        require(data.getInt(base + 4) == FORMAT_VERSION) { "Unsupported rule file format ${data.getInt(base + 4)}" }
+        val version = data.getLong(base + 8)
+        val length = data.getInt(base + 16)
+        require(data.remaining() >= length) { "Rule file truncated" }
+        data.limit(base + length)
+        return RuleSnapshot.readFrom(SectionReader(data, base + HEADER_SIZE), version)
+    }
+
+    internal class SectionWriter {
+        private val sections = ArrayList<java.nio.Buffer>()
+
+        fun ints(values: IntBuffer) { sections.add(values.duplicate().also { it.rewind() }) }
+        fun chars(values: CharBuffer) { sections.add(values.duplicate().also { it.rewind() }) }
+        fun longs(values: LongBuffer) { sections.add(values.duplicate().also { it.rewind() }) }
+
+        fun toByteBuffer(version: Long): ByteBuffer {
+            val length = HEADER_SIZE + sections.sumOf { 8 + align(it.remaining() * elementSize(it)) }
+            val out = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN)
+            out.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(version).putInt(length).putInt(0)
+            sections.forEach { section ->
+                val count = section.remaining()
+                when (section) {
+                    is IntBuffer -> {
+                        out.putInt(KIND_INT).putInt(count)
+                        out.asIntBuffer().put(section)
+                    }
+                    is CharBuffer -> {
+                        out.putInt(KIND_CHAR).putInt(count)
+                        out.asCharBuffer().put(section)
+                    }
+                    is LongBuffer -> {
+                        out.putInt(KIND_LONG).putInt(count)
+                        out.asLongBuffer().put(section)
+                    }
+                }
+                out.position(out.position() + align(count * elementSize(section)))
+            }
+            out.flip()
+            return out
+        }
+
+        private fun elementSize(buffer: java.nio.Buffer): Int = when (buffer) {
+            is IntBuffer -> 4
+            is CharBuffer -> 2
+            else -> 8
+        }
+    }
+
+    internal class SectionReader(private val data: ByteBuffer, private var position: Int) {
+
+        fun ints(): IntBuffer = section(KIND_INT, 4).asIntBuffer()
+        fun chars(): CharBuffer = section(KIND_CHAR, 2).asCharBuffer()
+        fun longs(): LongBuffer = section(KIND_LONG, 8).asLongBuffer()
+
+        private fun section(kind: Int, elementSize: Int): ByteBuffer {
+            require(position + 8 <= data.limit()) { "Rule file truncated" }
+            require(data.getInt(position) == kind) { "Unexpected section kind at $position" }
+            val count = data.getInt(position + 4)
+            val bytes = count * elementSize
+            val start = position + 8
+            require(count >= 0 && start + bytes <= data.limit()) { "Rule file truncated" }
+            position = start + align(bytes)
+            val view = data.duplicate()
+            view.limit(start + bytes)
+            view.position(start)
+            return view.slice().order(ByteOrder.LITTLE_ENDIAN)
+        }
+    }
+
+    private fun align(bytes: Int): Int = (bytes + 7) and 7.inv()
+}
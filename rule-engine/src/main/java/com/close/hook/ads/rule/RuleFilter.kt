@@ -0,0 +1,220 @@
+package com.close.hook.ads.rule
+
+import java.nio.IntBuffer
+import java.nio.LongBuffer
+
+/**
+ * Bloom filter over the URL and Domain rules, used to answer the common "none of
+ * them applies" case before the host is extracted or their matchers run.
+ *
+ * - Domain rules contribute their fixed suffix (the labels right of the last `*`),
+ *   and the host of a request is probed at every label boundary.
+ * - URL rules contribute their first [URL_PREFIX_LENGTH] characters, or the whole
+ *   value when shorter, case-folded as [UrlPrefixMatcher] matches them; the request
+ *   is probed at each length that occurs.
+ *
+ * KeyWord and Regex rules are left to their automata, which scan the request in
+ * one table lookup per character; probing every position of it here would cost
+ * more than that scan saves.
+ *
+ * [mightMatch] never allocates. A false result is definite; a true result only
+ * means the matchers have to run. A domain ending in a `*` label cannot be
+ * represented and switches the filter to always answer true. Allow rules are
+ * included, so a false result also rules out a URL or Domain exception to a
+ * KeyWord or Regex block.
+ *
+ * A single request costs a few dozen probes (URL prefix lengths, every host
+ * suffix), so the filter is sized for a per-probe false positive rate well
+ * below the usual 1%.
+ */
+class RuleFilter private constructor(
+    private val bits: LongBuffer,
+    private val meta: IntBuffer
+) {
+
+    private val bitCount = bits.capacity().toLong() * 64
+    private val hashCount = meta.get(META_HASH_COUNT)
+    private val urlLengths = meta.get(META_URL_LENGTHS)
+    private val flags = meta.get(META_FLAGS)
+
+    fun mightMatch(requestValue: CharSequence): Boolean {
+        if (flags and FLAG_ALWAYS != 0) return true
+        if (flags and FLAG_EMPTY != 0) return false
+        return mightMatchUrl(requestValue) || mightMatchHost(requestValue)
+    }
+
+    private fun mightMatchUrl(value: CharSequence): Boolean {
+        if (urlLengths == 0) return false
+        var hash = SEED_URL
+        val limit = minOf(value.length, URL_PREFIX_LENGTH)
+        for (i in 0 until limit) {
+            hash = step(hash, UrlPrefixMatcher.foldCase(value[i]))
+            val length = i + 1
+            if ((length == URL_PREFIX_LENGTH || urlLengths and (1 shl length) != 0) && contains(hash)) {
+                return true
+            }
+        }
+        return false
+    }
+
+    // The host is whatever Uri.parse() reports, falling back to the whole value. The
+    // parse has an authority exactly when "//" follows the first ':' (or starts a value
+    // without one), and then its host never falls back, even when empty; so only one
+    // candidate needs probing. A '\\' ends the authority on newer releases only, so
+    // both readings are probed when one occurs.
+    private fun mightMatchHost(value: CharSequence): Boolean {
+        if (flags and FLAG_DOMAINS == 0) return false
+        val start = indexOf(value, ':') + 1
+        if (start + 2 > value.length || value[start] != '/' || value[start + 1] != '/') {
+            return mightMatchHost(value, 0, value.length)
+        }
+        var end = start + 2
+        while (end < value.length && value[end] != '/' && value[end] != '?' && value[end] != '#' && value[end] != '\\') end++
+        if (mightMatchAuthority(value, start + 2, end)) return true
+        if (end == value.length || value[end] != '\\') return false
+        while (end < value.length && value[end] != '/' && value[end] != '?' && value[end] != '#') end++
+        return mightMatchAuthority(value, start + 2, end)
+    }
+
+    // The host of an authority: after the last '@', before a port separator that is
+    // not inside an IPv6 literal.
+    private fun mightMatchAuthority(value: CharSequence, authorityStart: Int, authorityEnd: Int): Boolean {
+        var start = authorityStart
+        var end = authorityEnd
+        for (i in authorityStart until authorityEnd) {
+            if (value[i] == '@') start = i + 1
+        }
+        for (i in authorityEnd - 1 downTo start) {
+            if (value[i] == ']') break
+            if (value[i] == ':') {
+                end = i
+                break
+            }
+        }
+        return mightMatchHost(value, start, end)
+    }
+
+    private fun mightMatchHost(value: CharSequence, start: Int, hostEnd: Int): Boolean {
+        var end = hostEnd
+        if (end > start && value[end - 1] == '.') end--
+        if (end <= start) return false
+        var hash = SEED_DOMAIN
+        for (i in end - 1 downTo start) {
+            hash = step(hash, lowercase(value[i]))
+            if ((i == start || value[i - 1] == '.') && contains(hash)) return true
+        }
+        return false
+    }
+
+    private fun contains(hash: Long): Boolean {
+        val h1 = hash.toInt()
+        val h2 = (hash ushr 32).toInt()
+        for (i in 0 until hashCount) {
+            val bit = ((h1 + i * h2).toLong() and 0xFFFFFFFFL) % bitCount
+            if (bits.get((bit ushr 6).toInt()) and (1L shl (bit and 63).toInt()) == 0L) return false
+        }
+        return true
+    }
+
+    internal fun writeTo(out: RuleFile.SectionWriter) {
+        out.longs(bits)
+        out.ints(meta)
+    }
+
+    class Builder {
+        private val hashes = ArrayList<Long>()
+        private var urlLengths = 0
+        private var flags = 0
+
+        fun add(rule: Rule): Builder {
+            val value = rule.value
+            if (value.isEmpty()) return this
+            when (rule.type) {
+                RuleType.URL -> {
+                    val length = minOf(value.length, URL_PREFIX_LENGTH)
+                    urlLengths = urlLengths or (1 shl length)
+                    hashes.add(hash(SEED_URL, UrlPrefixMatcher.foldCase(value), 0, length))
+                }
+                RuleType.DOMAIN -> {
+                    val labels = DomainMatcher.parse(value)?.first ?: return this
+                    val fixed = labels.subList(labels.lastIndexOf("*") + 1, labels.size)
+                    if (fixed.isEmpty()) {
+                        flags = flags or FLAG_ALWAYS
+                        return this
+                    }
+                    val suffix = fixed.joinToString(".")
+                    var hash = SEED_DOMAIN
+                    for (i in suffix.length - 1 downTo 0) hash = step(hash, suffix[i])
+                    flags = flags or FLAG_DOMAINS
+                    hashes.add(hash)
+                }
+                RuleType.KEYWORD, RuleType.REGEX -> Unit
+            }
+            return this
+        }
+
+        fun build(): RuleFilter {
+            val words = maxOf(1, (hashes.size * BITS_PER_KEY + 63) / 64)
+            val bits = LongArray(words)
+            val bitCount = words.toLong() * 64
+            hashes.forEach { hash ->
+                val h1 = hash.toInt()
+                val h2 = (hash ushr 32).toInt()
+                for (i in 0 until HASH_COUNT) {
+                    val bit = ((h1 + i * h2).toLong() and 0xFFFFFFFFL) % bitCount
+                    bits[(bit ushr 6).toInt()] = bits[(bit ushr 6).toInt()] or (1L shl (bit and 63).toInt())
+                }
+            }
+            if (hashes.isEmpty() && flags and FLAG_ALWAYS == 0) flags = flags or FLAG_EMPTY
+            val meta = IntArray(META_SIZE)
+            meta[META_HASH_COUNT] = HASH_COUNT
+            meta[META_URL_LENGTHS] = urlLengths
+            meta[META_FLAGS] = flags
+            return RuleFilter(LongBuffer.wrap(bits), IntBuffer.wrap(meta))
+        }
+    }
+
+    companion object {
+        const val URL_PREFIX_LENGTH = 24
+
+        private const val BITS_PER_KEY = 24
+        private const val HASH_COUNT = 7
+
+        private const val META_HASH_COUNT = 0
+        private const val META_URL_LENGTHS = 1
+        private const val META_FLAGS = 2
+        private const val META_SIZE = 3
+
+        private const val FLAG_ALWAYS = 1
+        private const val FLAG_EMPTY = 2
+        private const val FLAG_DOMAINS = 4
+
+        private const val FNV_PRIME = 0x100000001b3L
+        private const val SEED_URL = -0x340d631b7bdddcdbL
+        private const val SEED_DOMAIN = SEED_URL xor 0x5bd1e995L
+
+        internal fun readFrom(input: RuleFile.SectionReader): RuleFilter =
+            RuleFilter(input.longs(), input.ints())
+
+        private fun step(hash: Long, c: Char): Long = (hash xor c.code.toLong()) * FNV_PRIME
+
+        private fun hash(seed: Long, value: CharSequence, start: Int, end: Int): Long {
+            var hash = seed
+            for (i in start until end) hash = step(hash, value[i])
+            return hash
+        }
+
+        private fun indexOf(value: CharSequence, target: Char): Int {
+            for (i in 0 until value.length) {
+                if (value[i] == target) return i
+            }
+            return -1
+        }
+
+        private fun lowercase(c: Char): Char = when (c) {
+            in 'A'..'Z' -> c + ('a' - 'A')
+            in '\u0000'..'\u007f' -> c
+            else -> Character.toLowerCase(c)
+        }
+    }
+}
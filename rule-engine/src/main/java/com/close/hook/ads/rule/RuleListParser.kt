@@ -0,0 +1,61 @@
+package com.close.hook.ads.rule
+
+/**
+ * Line-by-line parser for rule lists, so an import never has to hold a whole file.
+ *
+ * Accepts, per line:
+ * - the exported `type, value` format, or `type@package, value` for a scoped rule,
+ *   either prefixed with `@@` for an allow rule;
+ * - hosts files (`0.0.0.0 ads.example.com`), which become exact Domain rules;
+ * - Adblock Plus filters, through [AbpCompiler].
+ *
+ * Returned rules carry id 0, and URL rules come case-folded by [UrlPrefixMatcher.foldCase].
+ */
+object RuleListParser {
+
+    const val ALLOW_PREFIX = "@@"
+
+    private val HOSTS_ADDRESSES = setOf("0.0.0.0", "127.0.0.1", "::", "::1", "0:0:0:0:0:0:0:0", "0:0:0:0:0:0:0:1")
+    private val HOSTS_IGNORED = setOf(
+        "localhost", "localhost.localdomain", "local", "broadcasthost",
+        "ip6-localhost", "ip6-loopback", "ip6-localnet", "ip6-mcastprefix",
+        "ip6-allnodes", "ip6-allrouters", "ip6-allhosts", "0.0.0.0"
+    )
+    private val WHITESPACE = Regex("\\s+")
+
+    fun parse(line: String): List<Rule> {
+        val trimmed = line.trim()
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) return emptyList()
+
+        val parts = trimmed.split(',', limit = 2)
+        if (parts.size == 2) {
+            val allow = parts[0].trim().startsWith(ALLOW_PREFIX)
+            val label = parts[0].trim().removePrefix(ALLOW_PREFIX)
+            RuleType.fromLabel(label.substringBefore('@'))?.let { type ->
+                val value = parts[1].trim()
+                val scope = label.substringAfter('@', "").trim()
+                return when {
+                    value.isEmpty() -> emptyList()
+                    type == RuleType.URL -> listOf(Rule(0, type, UrlPrefixMatcher.foldCase(value), scope, allow))
+                    else -> listOf(Rule(0, type, value, scope, allow))
+                }
+            }
+        }
+
+        val tokens = trimmed.substringBefore('#').trim().split(WHITESPACE)
+        if (tokens.size >= 2 && tokens[0] in HOSTS_ADDRESSES) {
+            return tokens.drop(1)
+                .map { it.lowercase().removeSuffix(".") }
+                .filter { it.isNotEmpty() && it !in HOSTS_IGNORED }
+                .map { Rule(0, RuleType.DOMAIN, it) }
+        }
+
+        return AbpCompiler.compile(trimmed)
+    }
+
+    /** Formats [rule] as a line [parse] reads back. */
+    fun format(rule: Rule): String {
+        val label = if (rule.scope.isEmpty()) rule.type.label else "${rule.type.label}@${rule.scope}"
+        return if (rule.allow) "$ALLOW_PREFIX$label, ${rule.value}" else "$label, ${rule.value}"
+    }
+}
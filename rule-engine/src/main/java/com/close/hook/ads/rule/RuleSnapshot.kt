@@ -0,0 +1,153 @@
+package com.close.hook.ads.rule
+
+import java.nio.IntBuffer
+
+/**
+ * Immutable, pre-compiled view of the `url_info` rules.
+ *
+ * A snapshot is either built from the full rule list or mapped from a
+ * [RuleFile], and then answers URL, Domain and KeyWord lookups locally, so the
+ * hooked process does not need a provider round trip per request. Match order
+ * is the same as the provider path: URL prefix first, then domain, then keyword,
+ * then the residual Regex rules.
+ *
+ * Allow rules are compiled into the same matchers and take precedence over any
+ * block rule, so [matchIndex] returns the deciding rule in one pass: an allow rule
+ * (see [isAllow]) means the request passes. Once a block rule has matched, only
+ * the rule types that have allow rules at all are still looked at.
+ *
+ * [matchIndex] does not allocate; the matched [Rule] is only materialized from
+ * the [RuleTable] through [ruleAt].
+ */
+class RuleSnapshot private constructor(
+    val version: Long,
+    private val table: RuleTable,
+    private val urlPrefixes: UrlPrefixMatcher,
+    private val domains: DomainMatcher,
+    private val keywords: KeywordMatcher,
+    private val regexes: RegexMatcher,
+    private val filter: RuleFilter,
+    // Bit per RuleType ordinal that has allow rules.
+    private val allowTypes: Int
+) {
+
+    val size: Int get() = table.size
+
+    val hasAllowRules: Boolean get() = allowTypes != 0
+
+    /**
+     * Cheap pre-check on the raw request value: false means no URL or Domain rule
+     * matches it or whatever host is extracted from it, so [matchScannedIndex] gives
+     * the same answer as [matchIndex] without needing the host.
+     */
+    fun mightMatch(requestValue: CharSequence): Boolean = filter.mightMatch(requestValue)
+
+    fun matchIndex(requestValue: CharSequence, host: CharSequence): Int =
+        matchIndex(requestValue, host, MATCH_ORDER)
+
+    /** [matchIndex] over only the KeyWord and Regex rules, which scan the whole value. */
+    fun matchScannedIndex(requestValue: CharSequence): Int =
+        matchIndex(requestValue, requestValue, SCANNED_ORDER)
+
+    private fun matchIndex(requestValue: CharSequence, host: CharSequence, order: Array<RuleType>): Int {
+        var blocked = -1
+        for (type in order) {
+            if (blocked >= 0 && allowTypes and (1 shl type.ordinal) == 0) continue
+            val index = matchIndex(type, if (type == RuleType.DOMAIN) host else requestValue)
+            if (RuleTable.isAllow(index)) return index
+            if (blocked < 0) blocked = index
+        }
+        return blocked
+    }
+
+    fun matchIndex(type: RuleType, value: CharSequence): Int = when (type) {
+        RuleType.URL -> urlPrefixes.matchIndex(value)
+        RuleType.DOMAIN -> domains.matchIndex(value)
+        RuleType.KEYWORD -> keywords.matchIndex(value, allowTypes and (1 shl type.ordinal) != 0)
+        RuleType.REGEX -> regexes.matchIndex(value)
+    }
+
+    /** Whether [index], as returned by [matchIndex], is an allow rule rather than a block. */
+    fun isAllow(index: Int): Boolean = RuleTable.isAllow(index)
+
+    fun match(requestValue: CharSequence, host: CharSequence): Rule? =
+        ruleOrNull(matchIndex(requestValue, host))
+
+    fun match(type: RuleType, value: CharSequence): Rule? =
+        ruleOrNull(matchIndex(type, value))
+
+    fun ruleAt(index: Int): Rule = table.ruleAt(index)
+
+    fun ruleIdAt(index: Int): Long = table.idAt(index)
+
+    private fun ruleOrNull(index: Int): Rule? = if (index >= 0) table.ruleAt(index) else null
+
+    internal fun writeTo(out: RuleFile.SectionWriter) {
+        table.writeTo(out)
+        urlPrefixes.writeTo(out)
+        domains.writeTo(out)
+        keywords.writeTo(out)
+        regexes.writeTo(out)
+        filter.writeTo(out)
+        out.ints(IntBuffer.wrap(intArrayOf(allowTypes)))
+    }
+
+    companion object {
+
+        private val MATCH_ORDER = arrayOf(RuleType.URL, RuleType.DOMAIN, RuleType.KEYWORD, RuleType.REGEX)
+        private val SCANNED_ORDER = arrayOf(RuleType.KEYWORD, RuleType.REGEX)
+
+        val EMPTY = build(emptyList())
+
+        /**
+         * Compiles [rules] into a heap-backed snapshot. [keywordBuilder] lets a
+         * long-lived caller keep its keyword trie between builds and only apply
+         * the keyword rules that changed.
+         */
+        fun build(
+            rules: Collection<Rule>,
+            keywordBuilder: KeywordMatcher.Builder? = null,
+            version: Long = 0L
+        ): RuleSnapshot {
+            val table = RuleTable.Builder()
+            val urlRules = ArrayList<Rule>()
+            val domainRules = ArrayList<Rule>()
+            val regexRules = ArrayList<Rule>()
+            val keywords = keywordBuilder ?: KeywordMatcher.Builder()
+            val filter = RuleFilter.Builder()
+            var allowTypes = 0
+            rules.forEach { rule ->
+                if (rule.value.isEmpty()) return@forEach
+                filter.add(rule)
+                if (rule.allow) allowTypes = allowTypes or (1 shl rule.type.ordinal)
+                when (rule.type) {
+                    RuleType.URL -> urlRules.add(rule)
+                    RuleType.DOMAIN -> domainRules.add(rule)
+                    RuleType.KEYWORD -> if (keywordBuilder == null) keywords.add(rule)
+                    RuleType.REGEX -> regexRules.add(rule)
+                }
+            }
+            val urlMatcher = UrlPrefixMatcher.build(urlRules, table)
+            val domainMatcher = DomainMatcher.build(domainRules, table)
+            val keywordMatcher = keywords.build(table)
+            val regexMatcher = RegexMatcher.build(regexRules, table)
+            return RuleSnapshot(
+                version, table.build(), urlMatcher, domainMatcher, keywordMatcher, regexMatcher, filter.build(), allowTypes
+            )
+        }
+
+        internal fun readFrom(input: RuleFile.SectionReader, version: Long): RuleSnapshot {
+            val table = RuleTable.readFrom(input)
+            return RuleSnapshot(
+                version,
+                table,
+                UrlPrefixMatcher.readFrom(input),
+                DomainMatcher.readFrom(input),
+                KeywordMatcher.readFrom(input),
+                RegexMatcher.readFrom(input, table),
+                RuleFilter.readFrom(input),
+                input.ints().get(0)
+            )
+        }
+    }
+}
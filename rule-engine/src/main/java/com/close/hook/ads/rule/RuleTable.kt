@@ -0,0 +1,93 @@
+package com.close.hook.ads.rule
+
+import java.nio.CharBuffer
+import java.nio.IntBuffer
+import java.nio.LongBuffer
+
+/**
+ * Flat table of the rules referenced by the matchers. Matchers only store an
+ * index into this table, and the [Rule] object with its string value is only
+ * materialized by [ruleAt], i.e. when a block actually has to be reported.
+ *
+ * Indexes of allow rules carry [ALLOW_REF], so a matcher can tell an exception
+ * from a block rule while it traverses, without looking the rule up.
+ */
+class RuleTable internal constructor(
+    private val ids: LongBuffer,
+    private val types: IntBuffer,
+    private val valueStart: IntBuffer,
+    private val valueLength: IntBuffer,
+    private val valueChars: CharBuffer
+) {
+
+    val size: Int get() = types.capacity()
+
+    fun idAt(index: Int): Long = ids.get(index and ALLOW_REF.inv())
+
+    fun typeAt(index: Int): RuleType = RuleType.entries[types.get(index and ALLOW_REF.inv())]
+
+    fun ruleAt(index: Int): Rule {
+        val row = index and ALLOW_REF.inv()
+        val start = valueStart.get(row)
+        val chars = CharArray(valueLength.get(row))
+        for (i in chars.indices) {
+            chars[i] = valueChars.get(start + i)
+        }
+        return Rule(ids.get(row), RuleType.entries[types.get(row)], String(chars), allow = isAllow(index))
+    }
+
+    internal fun writeTo(out: RuleFile.SectionWriter) {
+        out.longs(ids)
+        out.ints(types)
+        out.ints(valueStart)
+        out.ints(valueLength)
+        out.chars(valueChars)
+    }
+
+    class Builder {
+        private val ids = ArrayList<Long>()
+        private val types = ArrayList<Int>()
+        private val starts = ArrayList<Int>()
+        private val values = StringBuilder()
+
+        fun add(rule: Rule): Int {
+            ids.add(rule.id)
+            types.add(rule.type.ordinal)
+            starts.add(values.length)
+            values.append(rule.value)
+            val index = types.size - 1
+            return if (rule.allow) index or ALLOW_REF else index
+        }
+
+        fun build(): RuleTable {
+            val lengths = IntArray(starts.size) { i ->
+                (if (i + 1 < starts.size) starts[i + 1] else values.length) - starts[i]
+            }
+            val chars = CharArray(values.length)
+            values.getChars(0, values.length, chars, 0)
+            return RuleTable(
+                LongBuffer.wrap(ids.toLongArray()),
+                IntBuffer.wrap(types.toIntArray()),
+                IntBuffer.wrap(starts.toIntArray()),
+                IntBuffer.wrap(lengths),
+                CharBuffer.wrap(chars)
+            )
+        }
+    }
+
+    companion object {
+        const val ALLOW_REF = 1 shl 29
+
+        fun isAllow(index: Int): Boolean = index >= 0 && index and ALLOW_REF != 0
+
+        /**
+         * The one of two matched indexes (either may be -1) that decides the verdict:
+         * an allow rule over a block rule, otherwise [first].
+         */
+        fun prefer(first: Int, second: Int): Int =
+            if (first < 0 || (!isAllow(first) && isAllow(second))) second else first
+
+        internal fun readFrom(input: RuleFile.SectionReader): RuleTable =
+            RuleTable(input.longs(), input.ints(), input.ints(), input.ints(), input.chars())
+    }
+}
@@ -0,0 +1,14 @@
+package com.close.hook.ads.rule
+
+// Ordinals are persisted in url_info.type and sent over the provider: only append.
+enum class RuleType(val label: String) {
+    URL("URL"),
+    DOMAIN("Domain"),
+    KEYWORD("KeyWord"),
+    REGEX("Regex");
+
+    companion object {
+        fun fromLabel(label: String?): RuleType? =
+            entries.firstOrNull { it.label.equals(label, ignoreCase = true) }
+    }
+}
@@ -0,0 +1,78 @@
+package com.close.hook.ads.rule
+
+/**
+ * The rules that apply to one app: the shared global snapshot plus the usually
+ * much smaller snapshot of rules scoped to [scope]. Scoped rules are checked
+ * first, so an app-specific rule wins over a global one. Allow rules win over
+ * block rules from either snapshot, so a scoped exception lifts a global block
+ * and a global exception lifts a scoped one.
+ *
+ * Rule references returned by [matchIndex] tag scoped indexes with a high bit;
+ * resolve them through [ruleAt] rather than through either snapshot directly.
+ */
+class ScopedRuleSet(
+    val global: RuleSnapshot,
+    val scope: String = "",
+    val scoped: RuleSnapshot? = null
+) {
+
+    val version: Long get() = global.version
+
+    fun mightMatch(requestValue: CharSequence): Boolean =
+        scoped?.mightMatch(requestValue) == true || global.mightMatch(requestValue)
+
+    /**
+     * The whole local decision for one request: the [mightMatch] pre-check, so that
+     * [hostOf] and the URL and Domain matchers only run for values they can match,
+     * then [matchIndex], or [matchScannedIndex] when the pre-check rules them out.
+     */
+    inline fun classify(requestValue: String, hostOf: (String) -> CharSequence): Int =
+        if (mightMatch(requestValue)) matchIndex(requestValue, hostOf(requestValue)) else matchScannedIndex(requestValue)
+
+    fun matchIndex(requestValue: CharSequence, host: CharSequence): Int {
+        val index = scoped?.matchIndex(requestValue, host) ?: -1
+        if (index >= 0 && (isAllow(index) || !global.hasAllowRules)) return index or SCOPED_REF
+        return combine(index, global.matchIndex(requestValue, host))
+    }
+
+    fun matchScannedIndex(requestValue: CharSequence): Int {
+        val index = scoped?.matchScannedIndex(requestValue) ?: -1
+        if (index >= 0 && (isAllow(index) || !global.hasAllowRules)) return index or SCOPED_REF
+        return combine(index, global.matchScannedIndex(requestValue))
+    }
+
+    fun matchIndex(type: RuleType, value: CharSequence): Int {
+        val index = scoped?.matchIndex(type, value) ?: -1
+        if (index >= 0 && (isAllow(index) || !global.hasAllowRules)) return index or SCOPED_REF
+        return combine(index, global.matchIndex(type, value))
+    }
+
+    /** Whether [ref], as returned by [matchIndex], is an allow rule rather than a block. */
+    fun isAllow(ref: Int): Boolean = RuleTable.isAllow(ref)
+
+    // A scoped block only stands if the global snapshot has no exception for the value.
+    private fun combine(scopedIndex: Int, globalIndex: Int): Int =
+        if (scopedIndex >= 0 && !isAllow(globalIndex)) scopedIndex or SCOPED_REF else globalIndex
+
+    fun match(requestValue: CharSequence, host: CharSequence): Rule? =
+        ruleOrNull(matchIndex(requestValue, host))
+
+    fun match(type: RuleType, value: CharSequence): Rule? =
+        ruleOrNull(matchIndex(type, value))
+
+    fun ruleAt(ref: Int): Rule =
+        if (ref and SCOPED_REF != 0) {
+            requireNotNull(scoped).ruleAt(ref and SCOPED_REF.inv()).copy(scope = scope)
+        } else {
+            global.ruleAt(ref)
+        }
+
+    fun ruleIdAt(ref: Int): Long =
+        if (ref and SCOPED_REF != 0) requireNotNull(scoped).ruleIdAt(ref and SCOPED_REF.inv()) else global.ruleIdAt(ref)
+
+    private fun ruleOrNull(ref: Int): Rule? = if (ref >= 0) ruleAt(ref) else null
+
+    companion object {
+        private const val SCOPED_REF = 1 shl 30
+    }
+}
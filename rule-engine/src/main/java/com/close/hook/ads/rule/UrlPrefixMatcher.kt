@@ -0,0 +1,184 @@
+package com.close.hook.ads.rule
+
+import java.nio.CharBuffer
+import java.nio.IntBuffer
+import java.util.ArrayDeque
+import java.util.TreeMap
+
+/**
+ * Radix tree over URL rules that returns the longest rule which is a prefix of
+ * the input, or the first allow rule on the way there. Edges carry whole label
+ * runs, so a lookup compares each input character at most once and costs time
+ * proportional to the URL length, no matter how many rules there are.
+ * Matching ignores the case of ASCII letters, like the SQL `LIKE` it replaces:
+ * rules are stored folded by [foldCase] and the input is folded as it is read.
+ * [matchIndex] returns an index into the snapshot's [RuleTable].
+ */
+class UrlPrefixMatcher private constructor(
+    private val labelStart: IntBuffer,
+    private val labelLength: IntBuffer,
+    private val labelChars: CharBuffer,
+    private val nodeRule: IntBuffer,
+    private val edgeStart: IntBuffer,
+    private val edgeChars: CharBuffer,
+    private val edgeTargets: IntBuffer
+) {
+
+    fun matchIndex(url: CharSequence): Int {
+        var node = 0
+        var pos = 0
+        var best = -1
+        val length = url.length
+        while (pos < length) {
+            val child = child(node, foldCase(url[pos]))
+            if (child < 0) break
+            val start = labelStart.get(child)
+            val labelLen = labelLength.get(child)
+            if (pos + labelLen > length) break
+            for (i in 1 until labelLen) {
+                if (labelChars.get(start + i) != foldCase(url[pos + i])) return best
+            }
+            pos += labelLen
+            node = child
+            val rule = nodeRule.get(node)
+            if (RuleTable.isAllow(rule)) return rule
+            if (rule >= 0) best = rule
+        }
+        return best
+    }
+
+    private fun child(node: Int, c: Char): Int {
+        var low = edgeStart.get(node)
+        var high = edgeStart.get(node + 1) - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val midChar = edgeChars.get(mid)
+            when {
+                midChar < c -> low = mid + 1
+                midChar > c -> high = mid - 1
+                else -> return edgeTargets.get(mid)
+            }
+        }
+        return -1
+    }
+
+    internal fun writeTo(out: RuleFile.SectionWriter) {
+        out.ints(labelStart)
+        out.ints(labelLength)
+        out.chars(labelChars)
+        out.ints(nodeRule)
+        out.ints(edgeStart)
+        out.chars(edgeChars)
+        out.ints(edgeTargets)
+    }
+
+    private class Node(var label: String) {
+        val children = TreeMap<Char, Node>()
+        var rule = -1
+    }
+
+    companion object {
+
+        /** [value] with its ASCII letters lowercased, the form URL rules are matched in. */
+        fun foldCase(value: String): String {
+            for (i in value.indices) {
+                if (value[i] in 'A'..'Z') {
+                    val chars = value.toCharArray()
+                    for (j in i until chars.size) chars[j] = foldCase(chars[j])
+                    return String(chars)
+                }
+            }
+            return value
+        }
+
+        internal fun foldCase(c: Char): Char = if (c in 'A'..'Z') c + ('a' - 'A') else c
+
+        fun build(rules: Iterable<Rule>, table: RuleTable.Builder): UrlPrefixMatcher {
+            val root = Node("")
+            rules.forEach { rule ->
+                if (rule.value.isNotEmpty()) insert(root, rule, table)
+            }
+            return flatten(root)
+        }
+
+        internal fun readFrom(input: RuleFile.SectionReader): UrlPrefixMatcher = UrlPrefixMatcher(
+            input.ints(), input.ints(), input.chars(), input.ints(), input.ints(), input.chars(), input.ints()
+        )
+
+        private fun insert(root: Node, rule: Rule, table: RuleTable.Builder) {
+            val key = foldCase(rule.value)
+            var node = root
+            var i = 0
+            while (true) {
+                if (i == key.length) {
+                    if (node.rule < 0 || (rule.allow && !RuleTable.isAllow(node.rule))) node.rule = table.add(rule)
+                    return
+                }
+                var child = node.children[key[i]]
+                if (child == null) {
+                    node.children[key[i]] = Node(key.substring(i)).also { it.rule = table.add(rule) }
+                    return
+                }
+                val label = child.label
+                var common = 0
+                while (common < label.length && i + common < key.length && label[common] == key[i + common]) {
+                    common++
+                }
+                if (common < label.length) {
+                    val split = Node(label.substring(0, common))
+                    child.label = label.substring(common)
+                    split.children[child.label[0]] = child
+                    node.children[key[i]] = split
+                    child = split
+                }
+                node = child
+                i += common
+            }
+        }
+
+        private fun flatten(root: Node): UrlPrefixMatcher {
+            val order = ArrayList<Node>()
+            val queue = ArrayDeque<Node>()
+            queue.add(root)
+            while (queue.isNotEmpty()) {
+                val node = queue.poll()
+                order.add(node)
+                queue.addAll(node.children.values)
+            }
+            val indexOf = HashMap<Node, Int>(order.size * 2)
+            order.forEachIndexed { index, node -> indexOf[node] = index }
+
+            val nodeCount = order.size
+            val labelStart = IntArray(nodeCount)
+            val labelLength = IntArray(nodeCount)
+            val nodeRule = IntArray(nodeCount)
+            val edgeStart = IntArray(nodeCount + 1)
+            val edgeChars = CharArray(nodeCount - 1)
+            val edgeTargets = IntArray(nodeCount - 1)
+            val labelChars = StringBuilder()
+
+            var edge = 0
+            order.forEachIndexed { index, node ->
+                labelStart[index] = labelChars.length
+                labelLength[index] = node.label.length
+                labelChars.append(node.label)
+                nodeRule[index] = node.rule
+                edgeStart[index] = edge
+                node.children.forEach { (c, child) ->
+                    edgeChars[edge] = c
+                    edgeTargets[edge] = indexOf.getValue(child)
+                    edge++
+                }
+            }
+            edgeStart[nodeCount] = edge
+
+            val chars = CharArray(labelChars.length)
+            labelChars.getChars(0, labelChars.length, chars, 0)
+            return UrlPrefixMatcher(
+                IntBuffer.wrap(labelStart), IntBuffer.wrap(labelLength), CharBuffer.wrap(chars),
+                IntBuffer.wrap(nodeRule), IntBuffer.wrap(edgeStart), CharBuffer.wrap(edgeChars),
+                IntBuffer.wrap(edgeTargets)
+            )
+        }
+    }
+}
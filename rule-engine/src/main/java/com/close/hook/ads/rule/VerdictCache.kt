@@ -0,0 +1,80 @@
+package com.close.hook.ads.rule
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Fixed-size, open-addressing cache from a request [fingerprint] to the int
+ * reference of the rule it matched, or [NO_RULE].
+ *
+ * Each slot is a pair of longs holding `fingerprint xor data` and `data`, so a
+ * reader that races a writer sees a pair that fails the xor check and treats it
+ * as a miss instead of returning another request's verdict. Lookups and stores
+ * never allocate; when a probe window is full the home slot is simply
+ * overwritten.
+ */
+class VerdictCache(capacity: Int) {
+
+    private val mask: Int
+    private val slots: AtomicLongArray
+
+    init {
+        require(capacity > 0) { "Capacity must be positive" }
+        var size = Integer.highestOneBit(capacity)
+        if (size < capacity) size = size shl 1
+        mask = size - 1
+        slots = AtomicLongArray(size * 2)
+    }
+
+    /** Returns the cached rule reference, [NO_RULE] for a cached miss, or [ABSENT]. */
+    fun get(fingerprint: Long): Int {
+        var slot = home(fingerprint)
+        repeat(PROBES) {
+            val key = slots.get(slot * 2)
+            val data = slots.get(slot * 2 + 1)
+            if (data and PRESENT != 0L && key xor data == fingerprint) return data.toInt()
+            slot = (slot + 1) and mask
+        }
+        return ABSENT
+    }
+
+    fun put(fingerprint: Long, ruleRef: Int) {
+        val data = PRESENT or (ruleRef.toLong() and 0xFFFFFFFFL)
+        val home = home(fingerprint)
+        var slot = home
+        var target = home
+        for (i in 0 until PROBES) {
+            val stored = slots.get(slot * 2 + 1)
+            if (stored and PRESENT == 0L || slots.get(slot * 2) xor stored == fingerprint) {
+                target = slot
+                break
+            }
+            slot = (slot + 1) and mask
+        }
+        slots.set(target * 2 + 1, data)
+        slots.set(target * 2, fingerprint xor data)
+    }
+
+    private fun home(fingerprint: Long): Int = (fingerprint xor (fingerprint ushr 32)).toInt() and mask
+
+    companion object {
+        const val NO_RULE = -1
+        const val ABSENT = Int.MIN_VALUE
+
+        private const val PROBES = 4
+        private const val PRESENT = 1L shl 32
+
+        private const val FNV_OFFSET = -0x340d631b7bdddcdbL
+        private const val FNV_PRIME = 0x100000001b3L
+
+        /** 64-bit FNV-1a over the UTF-16 code units of [value], with a final mix. */
+        fun fingerprint(value: CharSequence): Long {
+            var hash = FNV_OFFSET
+            for (i in 0 until value.length) {
+                hash = (hash xor value[i].code.toLong()) * FNV_PRIME
+            }
+            hash = hash xor (hash ushr 33)
+            hash *= -0xae502812aa7333L
+            return hash xor (hash ushr 33)
+        }
+    }
+}
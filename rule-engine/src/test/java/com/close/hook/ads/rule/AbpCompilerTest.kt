@@ -0,0 +1,43 @@
+package com.close.hook.ads.rule
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class AbpCompilerTest {
+
+    private fun matches(filter: String, url: String): Boolean {
+        val rules = AbpCompiler.compile(filter).mapIndexed { i, rule -> rule.copy(id = i + 1L) }
+        assertTrue(filter, rules.isNotEmpty())
+        val snapshot = RuleSnapshot.build(rules)
+        return RuleType.entries.any { type ->
+            val value = if (type == RuleType.DOMAIN) url.substringAfter("://").substringBefore('/').lowercase() else url
+            snapshot.matchIndex(type, value) >= 0
+        }
+    }
+
+    @Test
+    fun filtersIgnoreCaseByDefault() {
+        assertTrue(matches("||example.com/Ads/Banner", "https://EXAMPLE.com/ads/BANNER.js"))
+        assertTrue(matches("|https://Example.com/Track", "https://example.com/TRACK?id=1"))
+        assertTrue(matches("/Pixel/Beacon", "https://cdn.example.org/pixel/beacon.gif"))
+        assertTrue(matches("/ad[0-9]+/", "https://cdn.example.org/AD42/x"))
+    }
+
+    @Test
+    fun matchCaseFiltersKeepCase() {
+        assertTrue(matches("/Pixel/Beacon\$match-case", "https://cdn.example.org/Pixel/Beacon.gif"))
+        assertFalse(matches("/Pixel/Beacon\$match-case", "https://cdn.example.org/pixel/beacon.gif"))
+        assertTrue(matches("|https://Example.com/Track\$match-case", "https://Example.com/Track?id=1"))
+        assertFalse(matches("|https://Example.com/Track\$match-case", "https://example.com/track?id=1"))
+        assertFalse(matches("||example.com/Ads\$match-case", "https://example.com/ads/1.js"))
+    }
+
+    @Test
+    fun contextOptionsSkipTheFilter() {
+        listOf("/ads.js\$script,third-party", "||ads.example.com^\$important", "||ads.example.com^\$~image", "/track\$domain=example.com")
+            .forEach { assertEquals(it, emptyList<Rule>(), AbpCompiler.compile(it)) }
+        assertEquals(1, AbpCompiler.compile("||ads.example.com^\$all").size)
+    }
+}
@@ -0,0 +1,52 @@
+package com.close.hook.ads.rule
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Test
+import java.lang.reflect.Modifier
+import java.util.Collections
+import java.util.IdentityHashMap
+
+class RegexAutomatonTest {
+
+    @Test
+    fun firstMatchFollowsRuleOrder() {
+        val automaton = RegexAutomaton.compile(listOf("ads?\\.", null, "^https://track", "banner$")) {}
+        assertEquals(0, automaton.firstMatch("https://ads.example.com/banner"))
+        assertEquals(2, automaton.firstMatch("https://tracker.example.com/"))
+        assertEquals(3, automaton.firstMatch("https://example.com/banner"))
+        assertEquals(-1, automaton.firstMatch("https://example.com/"))
+    }
+
+    // A thread's cache must not keep the automaton that created it reachable, or every
+    // rebuilt snapshot would stay in memory for as long as the matching thread lives.
+    @Test
+    fun threadCacheHoldsNoReferenceToTheAutomaton() {
+        val automaton = RegexAutomaton.compile(listOf("ads?[0-9]+\\.", "track")) {}
+        assertEquals(1, automaton.firstMatch("https://example.com/track"))
+        val caches = RegexAutomaton::class.java.getDeclaredField("caches").apply { isAccessible = true }
+        val cache = (caches.get(automaton) as ThreadLocal<*>).get()
+        assertNotNull(cache)
+        assertFalse(reaches(cache, automaton, Collections.newSetFromMap(IdentityHashMap())))
+    }
+
+    // Follows the fields of this module's objects and the elements of arrays; library
+    // objects such as the cache's HashMap only hold this module's keys and states.
+    private fun reaches(from: Any?, target: Any, seen: MutableSet<Any>): Boolean {
+        if (from === target) return true
+        if (from == null || !seen.add(from)) return false
+        if (from is Array<*>) return from.any { reaches(it, target, seen) }
+        var type: Class<*>? = from.javaClass
+        if (type?.name?.startsWith(RegexAutomaton::class.java.`package`.name) != true) return false
+        while (type != null && type != Any::class.java) {
+            for (field in type.declaredFields) {
+                if (Modifier.isStatic(field.modifiers) || field.type.isPrimitive) continue
+                field.isAccessible = true
+                if (reaches(field.get(from), target, seen)) return true
+            }
+            type = type.superclass
+        }
+        return false
+    }
+}
@@ -0,0 +1,84 @@
+package com.close.hook.ads.rule
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class RuleFilterTest {
+
+    private val rules = listOf(
+        Rule(1, RuleType.DOMAIN, "*.tracker.net"),
+        Rule(2, RuleType.DOMAIN, "ads.example.com"),
+        Rule(3, RuleType.URL, "https://cdn.example.org/ads/"),
+        Rule(4, RuleType.KEYWORD, "/banner"),
+        Rule(5, RuleType.REGEX, "pixel[0-9]+\\.gif"),
+        Rule(6, RuleType.DOMAIN, "ok.tracker.net", allow = true),
+        Rule(7, RuleType.URL, "https://static.example.org/banner", allow = true),
+        Rule(8, RuleType.URL, "HTTPS://Track.Example.net/Pixel")
+    )
+
+    private val requests = listOf(
+        "https://a.b.tracker.net/x",
+        "https://ok.tracker.net/banner",
+        "https://ADS.example.com:8443/",
+        "https://user@ads.example.com/",
+        "https://cdn.example.org/ads/1.js",
+        "https://cdn.example.org/static/1.js",
+        "https://static.example.org/banner/top.png",
+        "https://other.example.org/banner/top.png",
+        "https://other.example.org/PIXEL42.gif",
+        "https://other.example.org/pixel.gif",
+        "https://track.example.net/pixel?id=1",
+        "HTTPS://TRACK.EXAMPLE.NET/PIXEL",
+        "https://example.com/",
+        "//ads.example.com/x",
+        "ads.example.com",
+        "mailto:me@ads.example.com",
+        "https://[::1]:8080/banner",
+        "https:///ads.example.com",
+        "not a url"
+    )
+
+    @Test
+    fun rejectsOnlyValuesNoUrlOrDomainRuleMatches() {
+        val snapshot = RuleSnapshot.build(rules)
+        requests.forEach { value ->
+            val host = hostOf(value)
+            val index = snapshot.matchIndex(RuleType.URL, value).takeIf { it >= 0 }
+                ?: snapshot.matchIndex(RuleType.DOMAIN, host)
+            if (index >= 0) assertTrue(value, snapshot.mightMatch(value))
+        }
+        assertFalse(snapshot.mightMatch("https://example.com/"))
+        assertFalse(snapshot.mightMatch("https://other.example.org/banner/top.png"))
+    }
+
+    // Exceptions are in the filter, so skipping the URL and Domain matchers on a
+    // rejected value can never drop the rule that lets a KeyWord or Regex hit through.
+    @Test
+    fun classifyAgreesWithFullMatch() {
+        val set = ScopedRuleSet(RuleFile.read(RuleFile.write(RuleSnapshot.build(rules))))
+        requests.forEach { value ->
+            assertEquals(value, set.matchIndex(value, hostOf(value)), set.classify(value, ::hostOf))
+        }
+    }
+
+    @Test
+    fun urlRulesIgnoreAsciiCase() {
+        val snapshot = RuleFile.read(RuleFile.write(RuleSnapshot.build(rules)))
+        listOf("https://track.example.net/pixel?id=1", "HTTPS://TRACK.EXAMPLE.NET/PIXEL", "https://CDN.example.org/ADS/x").forEach {
+            assertTrue(it, snapshot.mightMatch(it))
+            assertTrue(it, snapshot.matchIndex(RuleType.URL, it) >= 0)
+        }
+    }
+
+    // What Uri.parse() reports as the host, falling back to the whole value.
+    private fun hostOf(url: String): String {
+        val start = url.indexOf(':') + 1
+        if (!url.startsWith("//", start)) return url.lowercase()
+        val authority = url.substring(start + 2).takeWhile { it !in "/?#\\" }.substringAfterLast('@')
+        val port = authority.lastIndexOf(':')
+        val host = if (port > authority.lastIndexOf(']')) authority.substring(0, port) else authority
+        return host.lowercase()
+    }
+}
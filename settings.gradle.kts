@@ -18,4 +18,5 @@ dependencyResolutionManagement {
 
 rootProject.name = "AdClose"
 
-include(":app")
\ No newline at end of file
+include(":app")
+include(":rule-engine")
\ No newline at end of file